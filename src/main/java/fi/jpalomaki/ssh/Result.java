@@ -25,6 +25,13 @@ public final class Result {
      */
     public final ByteBuffer stderr;
     
+    /**
+     * True if the command was terminated early, before it exited on its own
+     * (e.g. because its output matched a termination condition). In that case
+     * the exit code is not meaningful (typically -1).
+     */
+    public final boolean earlyTerminated;
+    
     /**
      * Constructs a new {@link Result}.
      * 
@@ -33,9 +40,22 @@ public final class Result {
      * @param stderr Standard error, not <code>null</code>
      */
     public Result(int exitCode, byte[] stdout, byte[] stderr) {
+        this(exitCode, stdout, stderr, false);
+    }
+    
+    /**
+     * Constructs a new {@link Result}.
+     * 
+     * @param exitCode Integer exit (return) code
+     * @param stdout Standard output, not <code>null</code>
+     * @param stderr Standard error, not <code>null</code>
+     * @param earlyTerminated True if the command was terminated early, false otherwise
+     */
+    public Result(int exitCode, byte[] stdout, byte[] stderr, boolean earlyTerminated) {
         this.exitCode = exitCode;
         this.stdout = ByteBuffer.wrap(stdout);
         this.stderr = ByteBuffer.wrap(stderr);
+        this.earlyTerminated = earlyTerminated;
     }
 
     /**
@@ -92,8 +112,8 @@ public final class Result {
         int stderrSizeInBytes = stderr.array().length;
         String hashCode = Integer.toHexString(hashCode());
         String instance = getClass().getSimpleName() + "@" + hashCode; 
-        return String.format("%s [exitCode=%s, stdoutSizeInBytes=%s, stderrSizeInBytes=%s]",
-                instance, exitCode, stdoutSizeInBytes, stderrSizeInBytes);
+        return String.format("%s [exitCode=%s, stdoutSizeInBytes=%s, stderrSizeInBytes=%s, earlyTerminated=%s]",
+                instance, exitCode, stdoutSizeInBytes, stderrSizeInBytes, earlyTerminated);
     }
 }
 
@@ -27,8 +27,12 @@ public interface SshClient {
      * 
      * <p>Roughly equivalent to: <code>echo &lt;stdin&gt; | ssh -p &lt;port&gt; &lt;user&gt;@&lt;host&gt; &lt;command&gt;</code>.</p> 
      * 
+     * <p>The remaining bytes of the buffer (from its position to its limit) are passed, not its whole
+     * backing array, and the position of the given buffer is left unchanged. Direct and memory-mapped
+     * buffers are supported.</p>
+     * 
      * @param command Command to execute, not <code>null</code> or empty
-     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param stdin Bytes (remaining in the buffer) to pass to command standard input, not <code>null</code>
      * @param userAtHost User at host (and port), not <code>null</code>
      * @return Result of running the command, never <code>null</code>
      * @throws SshClientException In case of errors
@@ -0,0 +1,16 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import fi.jpalomaki.ssh.SshClientException;
+
+/**
+ * Unchecked exception thrown when a scheduled command is dropped, unexecuted,
+ * because its deadline expired while it was queued.
+ */
+public final class DeadlineExpiredException extends SshClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExpiredException(String command, long queuedMillis) {
+        super("Deadline expired for command '" + command + "' after " + queuedMillis + " ms in queue");
+    }
+}
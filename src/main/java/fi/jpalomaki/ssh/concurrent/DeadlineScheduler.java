@@ -0,0 +1,295 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SshClient;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
+
+/**
+ * Schedules commands by priority class and deadline over a bounded number of workers,
+ * so that interactive commands do not queue behind bulk jobs. Thread-safe.
+ *
+ * Queued commands are dispatched highest priority class first, and earliest deadline
+ * first within a class (first come, first served among equal deadlines). Commands still
+ * queued at their deadline are dropped before a session is opened, failing with
+ * {@link DeadlineExpiredException} at the deadline (even while all workers are busy).
+ * Cancelled commands (e.g. callers that gave up) are removed from the queue.
+ *
+ * @author jpalomaki
+ */
+public final class DeadlineScheduler implements Closeable {
+
+    /**
+     * Priority class, highest first.
+     */
+    public enum Priority {
+        INTERACTIVE, NORMAL, BULK
+    }
+
+    /**
+     * Deadline of commands that have none.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final SshClient sshClient;
+    private final ExecutorService workers;
+    private final ScheduledThreadPoolExecutor expiries;
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<Request>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Priority, Statistics> statistics = new EnumMap<Priority, Statistics>(Priority.class);
+
+    /**
+     * Constructs a new {@link DeadlineScheduler}.
+     *
+     * @param sshClient SSH client, not <code>null</code>
+     * @param workers Maximum number of commands to execute in parallel, > 0
+     */
+    public DeadlineScheduler(SshClient sshClient, int workers) {
+        Assert.notNull(sshClient, "SSH client must not be null");
+        Assert.isTrue(workers > 0, "Workers must be > 0");
+        this.sshClient = sshClient;
+        for (Priority priority : Priority.values()) {
+            statistics.put(priority, new Statistics());
+        }
+        this.expiries = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("ssh-scheduler-expiry"));
+        this.expiries.setRemoveOnCancelPolicy(true);
+        this.expiries.setKeepAliveTime(1L, TimeUnit.SECONDS);
+        this.expiries.allowCoreThreadTimeOut(true); // No thread while no deadlines are pending
+        this.workers = TaskExecutors.newTaskExecutor("ssh-scheduler", workers);
+        for (int i = 0; i < workers; i++) {
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the given command for execution, returning immediately.
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHost User at host (and port), not <code>null</code>
+     * @param priority Priority class, not <code>null</code>
+     * @param deadline Absolute deadline (as in {@link System#currentTimeMillis()}) to start
+     *        the command by, or {@link #NO_DEADLINE}
+     * @return Future result, failing with {@link DeadlineExpiredException} if dropped
+     */
+    public Future<Result> submit(final String command, final ByteBuffer stdin, final UserAtHost userAtHost, Priority priority, long deadline) {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(stdin, "Stdin must not be null (but may be empty)");
+        Assert.notNull(userAtHost, "User at host must not be null");
+        Assert.notNull(priority, "Priority must not be null");
+        Assert.isTrue(!workers.isShutdown(), "Scheduler has been closed");
+        final Request request = new Request(command, new Callable<Result>() {
+            @Override
+            public Result call() {
+                return sshClient.executeCommand(command, stdin.duplicate(), userAtHost);
+            }
+        }, priority, deadline);
+        statistics.get(priority).queued.incrementAndGet();
+        queue.add(request);
+        if (deadline != NO_DEADLINE) {
+            request.setExpiry(expiries.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request.expire();
+                }
+            }, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+        }
+        return request;
+    }
+
+    /**
+     * Returns the number of commands of the given priority class waiting in queue.
+     */
+    public int getQueueDepth(Priority priority) {
+        return statistics.get(priority).queued.get();
+    }
+
+    /**
+     * Returns the number of commands of the given priority class dispatched for execution.
+     */
+    public long getDispatchedCount(Priority priority) {
+        return statistics.get(priority).dispatched.get();
+    }
+
+    /**
+     * Returns the number of commands of the given priority class dropped for an expired deadline.
+     */
+    public long getExpiredCount(Priority priority) {
+        return statistics.get(priority).expired.get();
+    }
+
+    /**
+     * Returns the number of commands of the given priority class cancelled while queued.
+     */
+    public long getCancelledCount(Priority priority) {
+        return statistics.get(priority).cancelled.get();
+    }
+
+    /**
+     * Returns the mean time commands of the given priority class waited in queue before dispatch, in milliseconds.
+     */
+    public long getMeanWaitMillis(Priority priority) {
+        Statistics classStatistics = statistics.get(priority);
+        long dispatched = classStatistics.dispatched.get();
+        return dispatched > 0L ? classStatistics.waitMillis.get() / dispatched : 0L;
+    }
+
+    /**
+     * Returns the longest time a command of the given priority class waited in queue before dispatch, in milliseconds.
+     */
+    public long getMaxWaitMillis(Priority priority) {
+        return statistics.get(priority).maxWaitMillis.get();
+    }
+
+    /**
+     * Stops executing commands, interrupting (and thereby cancelling) running ones,
+     * and cancelling queued ones.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        expiries.shutdownNow();
+        for (Request request : queue.toArray(new Request[0])) {
+            request.cancel(false);
+        }
+    }
+
+    private void dispatch() {
+        while (!workers.isShutdown()) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                continue; // Closed, or a late interrupt of a cancelled request
+            }
+            if (request.dequeue()) {
+                request.run();
+                Thread.interrupted(); // Request cancelled while running, the worker lives on
+            }
+        }
+    }
+
+    private static final class Statistics {
+
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong dispatched = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong waitMillis = new AtomicLong();
+        final AtomicLong maxWaitMillis = new AtomicLong();
+    }
+
+    /**
+     * A queued command, ordered by priority class, then deadline, then arrival.
+     */
+    private final class Request extends FutureTask<Result> implements Comparable<Request> {
+
+        private final String command;
+        private final Priority priority;
+        private final long deadline;
+        private final long enqueued = System.currentTimeMillis();
+        private final long order = sequence.getAndIncrement();
+        private volatile Future<?> expiry;
+
+        Request(String command, Callable<Result> callable, Priority priority, long deadline) {
+            super(callable);
+            this.command = command;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Accounts for this request having been taken from the queue, returning true if it should be executed.
+         */
+        boolean dequeue() {
+            Statistics classStatistics = statistics.get(priority);
+            classStatistics.queued.decrementAndGet();
+            long now = System.currentTimeMillis();
+            long waited = now - enqueued;
+            if (isCancelled()) {
+                classStatistics.cancelled.incrementAndGet();
+                return false;
+            }
+            if (now > deadline) {
+                classStatistics.expired.incrementAndGet();
+                setException(new DeadlineExpiredException(command, waited));
+                return false;
+            }
+            classStatistics.dispatched.incrementAndGet();
+            classStatistics.waitMillis.addAndGet(waited);
+            for (long max = classStatistics.maxWaitMillis.get(); waited > max; max = classStatistics.maxWaitMillis.get()) {
+                if (classStatistics.maxWaitMillis.compareAndSet(max, waited)) {
+                    break;
+                }
+            }
+            return true;
+        }
+
+        void setExpiry(Future<?> expiry) {
+            this.expiry = expiry;
+            if (isDone()) {
+                expiry.cancel(false); // Completed before the expiry was set
+            }
+        }
+
+        /**
+         * Fails this request at its deadline, unless a worker has taken it (or it was cancelled) already.
+         */
+        void expire() {
+            if (queue.remove(this)) {
+                Statistics classStatistics = statistics.get(priority);
+                classStatistics.queued.decrementAndGet();
+                classStatistics.expired.incrementAndGet();
+                setException(new DeadlineExpiredException(command, System.currentTimeMillis() - enqueued));
+            }
+        }
+
+        @Override
+        protected void done() {
+            Future<?> expiry = this.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && queue.remove(this)) { // Otherwise taken by a worker, which accounts for it
+                statistics.get(priority).queued.decrementAndGet();
+                statistics.get(priority).cancelled.incrementAndGet();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
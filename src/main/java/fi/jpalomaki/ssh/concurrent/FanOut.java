@@ -0,0 +1,101 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SshClient;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Executes a command on many hosts in parallel, one blocking task per host,
+ * using an executor from {@link TaskExecutors} (virtual threads on Java 21+).
+ * Thread-safe.
+ *
+ * Results are keyed by user at host, and {@link UserAtHost} does not override
+ * <code>equals</code>, so each host must be a distinct instance: a host given
+ * more than once (the same instance) is silently executed only once.
+ *
+ * @author jpalomaki
+ */
+public final class FanOut implements Closeable {
+
+    private final SshClient sshClient;
+    private final ExecutorService executor;
+
+    /**
+     * Constructs a new {@link FanOut}.
+     *
+     * @param sshClient SSH client, not <code>null</code>
+     * @param maxParallelism Maximum number of commands to execute in parallel, 0 for no limit
+     */
+    public FanOut(SshClient sshClient, int maxParallelism) {
+        Assert.notNull(sshClient, "SSH client must not be null");
+        this.sshClient = sshClient;
+        this.executor = TaskExecutors.newTaskExecutor("ssh-fan-out", maxParallelism);
+    }
+
+    /**
+     * Executes the given command on the given hosts, returning immediately.
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHosts Users at hosts (distinct instances, repeated ones are dropped), not <code>null</code>
+     * @return Future results by user at host, in iteration order of the given hosts
+     */
+    public Map<UserAtHost, Future<Result>> executeCommand(String command, ByteBuffer stdin, Collection<UserAtHost> userAtHosts) {
+        return executeCommand(command, stdin, userAtHosts, null);
+    }
+
+    /**
+     * Executes the given command on the given hosts, returning immediately. Results (and
+     * failures) are added to the given groups as they complete, and the future results
+     * are the interned ones, sharing the output of identical results.
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHosts Users at hosts (distinct instances, repeated ones are dropped), not <code>null</code>
+     * @param groups Result groups to add results to, <code>null</code> for none
+     * @return Future (interned) results by user at host, in iteration order of the given hosts
+     */
+    public Map<UserAtHost, Future<Result>> executeCommand(final String command, final ByteBuffer stdin, Collection<UserAtHost> userAtHosts, final ResultGroups groups) {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(stdin, "Stdin must not be null (but may be empty)");
+        Assert.notNull(userAtHosts, "Users at hosts must not be null");
+        Map<UserAtHost, Future<Result>> results = new LinkedHashMap<UserAtHost, Future<Result>>(userAtHosts.size() * 2);
+        for (final UserAtHost userAtHost : userAtHosts) {
+            if (results.containsKey(userAtHost)) {
+                continue; // Already submitted, would otherwise run unobserved
+            }
+            results.put(userAtHost, executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    if (groups == null) {
+                        return sshClient.executeCommand(command, stdin.duplicate(), userAtHost);
+                    }
+                    try {
+                        return groups.add(userAtHost, sshClient.executeCommand(command, stdin.duplicate(), userAtHost));
+                    } catch (RuntimeException e) {
+                        groups.addFailure(userAtHost, e);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        return results;
+    }
+
+    /**
+     * Stops executing commands, interrupting (and thereby cancelling) running ones.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,300 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SshClient;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Executes read-only commands on one of several equivalent hosts (replicas), hedging
+ * against slow hosts: the command is executed on the first host, and if no successful
+ * result has arrived after the hedge delay, on the next host too, and so on. The first
+ * successful result (exit code 0) wins, and the other executions are cancelled (which
+ * disconnects them, for {@link fi.jpalomaki.ssh.jsch.JschSshClient}). Thread-safe.
+ *
+ * The hedge delay is the given percentile (default 95th) of recently observed request
+ * latencies, so that only the slowest requests get hedged. Latencies are measured from
+ * submission of the request to the first successful result, whichever host returns it,
+ * so that winning hedges do not make the delay drift down. Extra load is capped by a budget: every
+ * request earns a fraction of a hedge (default 0.1, i.e. at most 10% extra requests, with
+ * bursts of up to 10 hedges), and every hedge spends one.
+ *
+ * Failed executions (errors) fail over to the next host immediately, regardless of budget.
+ *
+ * @author jpalomaki
+ */
+public final class HedgingExecutor implements Closeable {
+
+    private static final int LATENCY_WINDOW = 1024;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final double MAX_BURST = 10.0;
+
+    private final SshClient sshClient;
+    private final ExecutorService executor;
+
+    private volatile double percentile = 95.0;
+    private volatile long initialDelayNanos = TimeUnit.SECONDS.toNanos(1L);
+    private volatile double budgetRatio = 0.1;
+    private volatile int maxHedges = 1;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount = 0;
+    private double budget = MAX_BURST;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    private final AtomicLong hedgeDeniedCount = new AtomicLong();
+    private final AtomicLong failoverCount = new AtomicLong();
+
+    /**
+     * Constructs a new {@link HedgingExecutor}.
+     *
+     * @param sshClient SSH client, not <code>null</code>
+     */
+    public HedgingExecutor(SshClient sshClient) {
+        Assert.notNull(sshClient, "SSH client must not be null");
+        this.sshClient = sshClient;
+        this.executor = TaskExecutors.newTaskExecutor("ssh-hedging", 0);
+    }
+
+    /**
+     * Sets the latency percentile used as hedge delay (default 95).
+     */
+    public void setPercentile(double percentile) {
+        Assert.isTrue(percentile > 0.0 && percentile < 100.0, "Percentile must be > 0 and < 100");
+        this.percentile = percentile;
+    }
+
+    /**
+     * Sets the hedge delay used until enough latencies have been observed (default 1s).
+     */
+    public void setInitialDelay(long initialDelay, TimeUnit unit) {
+        Assert.isTrue(initialDelay >= 0L, "Initial delay must be >= 0");
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+    }
+
+    /**
+     * Sets the extra load budget as a ratio of hedges to requests (default 0.1), 0 to disable hedging.
+     */
+    public void setBudgetRatio(double budgetRatio) {
+        Assert.isTrue(budgetRatio >= 0.0 && budgetRatio <= 1.0, "Budget ratio must be >= 0 and <= 1");
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * Sets the maximum number of hedges per request (default 1).
+     */
+    public void setMaxHedges(int maxHedges) {
+        Assert.isTrue(maxHedges >= 0, "Max hedges must be >= 0");
+        this.maxHedges = maxHedges;
+    }
+
+    /**
+     * Returns the number of requests executed.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Returns the number of hedges fired.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Returns the number of hedges that won (returned the result).
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * Returns the number of hedges not fired for lack of budget.
+     */
+    public long getHedgeDeniedCount() {
+        return hedgeDeniedCount.get();
+    }
+
+    /**
+     * Returns the number of executions started on the next host because of failures.
+     */
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    /**
+     * Returns the current hedge delay, in milliseconds.
+     */
+    public long getHedgeDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos());
+    }
+
+    /**
+     * Executes the given command on the first of the given equivalent hosts, hedging
+     * on the rest in order, and returns the first successful result. If there is no
+     * successful result, returns the last unsuccessful one, or throws the last error.
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHosts Equivalent users at hosts, in order of preference, not <code>null</code> or empty
+     * @return Result of running the command, never <code>null</code>
+     * @throws SshClientException If the command failed on all hosts
+     */
+    public Result executeCommand(String command, ByteBuffer stdin, List<UserAtHost> userAtHosts) throws SshClientException {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(stdin, "Stdin must not be null (but may be empty)");
+        Assert.isTrue(userAtHosts != null && !userAtHosts.isEmpty(), "Users at hosts must not be null or empty");
+        requestCount.incrementAndGet();
+        earnBudget();
+        Request request = new Request(command, stdin, userAtHosts);
+        try {
+            return request.execute();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SshClientException("Interrupted while executing command '" + command + "'", e);
+        } finally {
+            request.cancelAll();
+        }
+    }
+
+    /**
+     * Stops executing commands, interrupting (and thereby cancelling) running ones.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private synchronized void earnBudget() {
+        budget = Math.min(MAX_BURST, budget + budgetRatio);
+    }
+
+    private synchronized boolean spendBudget() {
+        if (budgetRatio > 0.0 && budget >= 1.0) {
+            budget -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[latencyCount++ % LATENCY_WINDOW] = nanos;
+        if (latencyCount == 2 * LATENCY_WINDOW) {
+            latencyCount = LATENCY_WINDOW; // Keep the index bounded, window stays full
+        }
+    }
+
+    private long hedgeDelayNanos() {
+        long[] window;
+        synchronized (this) {
+            if (latencyCount < MIN_LATENCY_SAMPLES) {
+                return initialDelayNanos;
+            }
+            window = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_WINDOW));
+        }
+        Arrays.sort(window);
+        int index = (int)Math.ceil(percentile / 100.0 * window.length) - 1;
+        return window[Math.max(0, Math.min(index, window.length - 1))];
+    }
+
+    /**
+     * A single hedged request.
+     */
+    private final class Request {
+
+        private final String command;
+        private final ByteBuffer stdin;
+        private final List<UserAtHost> userAtHosts;
+        private final CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+        private final List<Future<Result>> executions = new ArrayList<Future<Result>>();
+        private final long submitted = System.nanoTime();
+        private final List<Boolean> hedged = new ArrayList<Boolean>();
+        private int hedges = 0;
+
+        Request(String command, ByteBuffer stdin, List<UserAtHost> userAtHosts) {
+            this.command = command;
+            this.stdin = stdin;
+            this.userAtHosts = userAtHosts;
+        }
+
+        Result execute() throws InterruptedException {
+            long hedgeDelay = hedgeDelayNanos();
+            long nextHedge = System.nanoTime() + hedgeDelay;
+            boolean hedging = maxHedges > 0;
+            Result lastUnsuccessful = null;
+            SshClientException lastFailure = null;
+            int completed = 0;
+            start(false);
+            while (completed < executions.size()) {
+                boolean canHedge = hedging && hedges < maxHedges && executions.size() < userAtHosts.size();
+                Future<Result> done = canHedge ?
+                        completion.poll(nextHedge - System.nanoTime(), TimeUnit.NANOSECONDS) : completion.take();
+                if (done == null) {
+                    if (spendBudget()) {
+                        hedges++;
+                        hedgeCount.incrementAndGet();
+                        start(true);
+                        nextHedge = System.nanoTime() + hedgeDelay;
+                    } else {
+                        hedgeDeniedCount.incrementAndGet();
+                        hedging = false;
+                    }
+                    continue;
+                }
+                completed++;
+                int index = executions.indexOf(done);
+                try {
+                    Result result = done.get();
+                    if (result.exitCode == 0) {
+                        recordLatency(System.nanoTime() - submitted);
+                        if (hedged.get(index)) {
+                            hedgeWinCount.incrementAndGet();
+                        }
+                        return result;
+                    }
+                    lastUnsuccessful = result;
+                } catch (ExecutionException e) {
+                    lastFailure = e.getCause() instanceof SshClientException ? (SshClientException)e.getCause() :
+                        new SshClientException("Failed to execute command '" + command + "' on " + userAtHosts.get(index), e.getCause());
+                }
+                if (completed == executions.size() && executions.size() < userAtHosts.size()) {
+                    failoverCount.incrementAndGet();
+                    start(false);
+                    nextHedge = System.nanoTime() + hedgeDelay;
+                }
+            }
+            if (lastUnsuccessful != null) {
+                return lastUnsuccessful;
+            }
+            throw lastFailure;
+        }
+
+        private void start(boolean hedge) {
+            final UserAtHost userAtHost = userAtHosts.get(executions.size());
+            hedged.add(hedge);
+            executions.add(completion.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return sshClient.executeCommand(command, stdin.duplicate(), userAtHost);
+                }
+            }));
+        }
+
+        void cancelAll() {
+            for (Future<Result> execution : executions) {
+                execution.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Aggregates results of the same command on many hosts, deduplicating identical output.
+ * Thread-safe.
+ *
+ * Standard output and error of every added result are hashed (SHA-256), and identical
+ * payloads are interned: the results returned by {@link #add(UserAtHost, Result)} share
+ * a single byte array per distinct payload, so that e.g. thousands of identical results
+ * take the heap of one. Hosts are grouped by exit code and output hashes.
+ *
+ * Interned results share their backing arrays, which must therefore not be modified.
+ *
+ * @author jpalomaki
+ */
+public final class ResultGroups {
+
+    private final Map<ByteBuffer, byte[]> payloads = new HashMap<ByteBuffer, byte[]>();
+    private final Map<Key, Group> groups = new LinkedHashMap<Key, Group>();
+    private final Map<UserAtHost, String> failures = new LinkedHashMap<UserAtHost, String>();
+    private long payloadBytes = 0L;
+    private long internedBytes = 0L;
+
+    /**
+     * Adds the given result of the given host, returning an equal result sharing interned payloads.
+     *
+     * @param userAtHost User at host, not <code>null</code>
+     * @param result Result, not <code>null</code>
+     * @return Interned result, never <code>null</code>
+     */
+    public Result add(UserAtHost userAtHost, Result result) {
+        Assert.notNull(userAtHost, "User at host must not be null");
+        Assert.notNull(result, "Result must not be null");
+        byte[] stdout = result.stdout.array();
+        byte[] stderr = result.stderr.array();
+        ByteBuffer stdoutDigest = digest(stdout);
+        ByteBuffer stderrDigest = digest(stderr);
+        Key key = new Key(result.exitCode, result.earlyTerminated, stdoutDigest, stderrDigest);
+        synchronized (this) {
+            Group group = groups.get(key);
+            if (group == null) {
+                Result interned = new Result(result.exitCode, intern(stdoutDigest, stdout), intern(stderrDigest, stderr), result.earlyTerminated);
+                group = new Group(interned, hex(stdoutDigest), hex(stderrDigest));
+                groups.put(key, group);
+            } else {
+                internedBytes += stdout.length + stderr.length;
+            }
+            synchronized (group.userAtHosts) {
+                group.userAtHosts.add(userAtHost);
+            }
+            return group.result;
+        }
+    }
+
+    /**
+     * Adds a failure (exception) of the given host, grouped by nothing but counted.
+     *
+     * @param userAtHost User at host, not <code>null</code>
+     * @param failure Failure, not <code>null</code>
+     */
+    public synchronized void addFailure(UserAtHost userAtHost, Throwable failure) {
+        Assert.notNull(userAtHost, "User at host must not be null");
+        Assert.notNull(failure, "Failure must not be null");
+        failures.put(userAtHost, String.valueOf(failure.getMessage()));
+    }
+
+    /**
+     * Returns the groups of identical results, largest first.
+     */
+    public synchronized List<Group> getGroups() {
+        List<Group> sorted = new ArrayList<Group>(groups.values());
+        Collections.sort(sorted, new Comparator<Group>() {
+            @Override
+            public int compare(Group group, Group other) {
+                return other.size() - group.size();
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the failure messages by user at host.
+     */
+    public synchronized Map<UserAtHost, String> getFailures() {
+        return new LinkedHashMap<UserAtHost, String>(failures);
+    }
+
+    /**
+     * Returns the number of results added (excluding failures).
+     */
+    public synchronized int getResultCount() {
+        int count = 0;
+        for (Group group : groups.values()) {
+            count += group.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of distinct payload bytes held (stdout and stderr).
+     */
+    public synchronized long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * Returns the number of payload bytes saved by interning.
+     */
+    public synchronized long getInternedBytes() {
+        return internedBytes;
+    }
+
+    /**
+     * Returns a summary such as <code>4815 hosts: 4812 identical, 3 differ (2 groups), 0 failed</code>.
+     */
+    public synchronized String summary() {
+        List<Group> sorted = getGroups();
+        int results = getResultCount();
+        int identical = sorted.isEmpty() ? 0 : sorted.get(0).size();
+        return String.format("%d hosts: %d identical, %d differ (%d groups), %d failed", results + failures.size(),
+                identical, results - identical, Math.max(0, sorted.size() - 1), failures.size());
+    }
+
+    private byte[] intern(ByteBuffer digest, byte[] payload) {
+        byte[] interned = payloads.get(digest);
+        if (interned == null) {
+            payloads.put(digest, payload);
+            payloadBytes += payload.length;
+            return payload;
+        }
+        internedBytes += payload.length;
+        return interned;
+    }
+
+    private static ByteBuffer digest(byte[] payload) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(payload));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    private static String hex(ByteBuffer digest) {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.array()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Hosts with identical results (exit code, standard output and standard error).
+     */
+    public static final class Group {
+
+        private final Result result;
+        private final String stdoutSha256;
+        private final String stderrSha256;
+        private final List<UserAtHost> userAtHosts = new ArrayList<UserAtHost>();
+
+        private Group(Result result, String stdoutSha256, String stderrSha256) {
+            this.result = result;
+            this.stdoutSha256 = stdoutSha256;
+            this.stderrSha256 = stderrSha256;
+        }
+
+        /**
+         * Returns the (interned) result shared by the hosts of this group.
+         */
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the SHA-256 checksum (hex) of standard output.
+         */
+        public String getStdoutSha256() {
+            return stdoutSha256;
+        }
+
+        /**
+         * Returns the SHA-256 checksum (hex) of standard error.
+         */
+        public String getStderrSha256() {
+            return stderrSha256;
+        }
+
+        /**
+         * Returns the users at hosts of this group, in order of addition.
+         */
+        public List<UserAtHost> getUserAtHosts() {
+            synchronized (userAtHosts) {
+                return new ArrayList<UserAtHost>(userAtHosts);
+            }
+        }
+
+        /**
+         * Returns the number of hosts in this group.
+         */
+        public int size() {
+            synchronized (userAtHosts) {
+                return userAtHosts.size();
+            }
+        }
+    }
+
+    private static final class Key {
+
+        private final int exitCode;
+        private final boolean earlyTerminated;
+        private final ByteBuffer stdoutDigest;
+        private final ByteBuffer stderrDigest;
+
+        Key(int exitCode, boolean earlyTerminated, ByteBuffer stdoutDigest, ByteBuffer stderrDigest) {
+            this.exitCode = exitCode;
+            this.earlyTerminated = earlyTerminated;
+            this.stdoutDigest = stdoutDigest;
+            this.stderrDigest = stderrDigest;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)object;
+            return exitCode == other.exitCode && earlyTerminated == other.earlyTerminated &&
+                    stdoutDigest.equals(other.stdoutDigest) && stderrDigest.equals(other.stderrDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * exitCode + stdoutDigest.hashCode()) + stderrDigest.hashCode();
+        }
+    }
+}
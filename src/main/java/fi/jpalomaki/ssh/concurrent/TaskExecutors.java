@@ -0,0 +1,45 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
+
+/**
+ * Factory for executors running blocking SSH tasks (one task per command).
+ *
+ * This is the Java 7 implementation, using daemon platform threads. On Java 21+
+ * (multi-release jar), virtual threads are used instead, so that tens of thousands
+ * of outstanding blocking commands only need a few carrier threads.
+ *
+ * @author jpalomaki
+ */
+public final class TaskExecutors {
+
+    private TaskExecutors() {
+        // Non-instantiable
+    }
+
+    /**
+     * Returns a new executor running at most the given number of tasks in parallel,
+     * queueing the rest, or running each task in a thread of its own if unbounded.
+     *
+     * @param name Thread name prefix, not <code>null</code> or empty
+     * @param maxParallelism Maximum number of tasks to run in parallel, 0 for no limit
+     */
+    public static ExecutorService newTaskExecutor(String name, int maxParallelism) {
+        Assert.hasText(name, "Name must not be null or empty");
+        Assert.isTrue(maxParallelism >= 0, "Max parallelism must be >= 0");
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory(name);
+        if (maxParallelism == 0) {
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxParallelism, maxParallelism,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,493 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
+
+/**
+ * Adaptive per-host selection of cipher, MAC and compression. Thread-safe.
+ *
+ * For each user at host, every candidate (<code>cipher/mac/compression</code>, e.g.
+ * <code>aes128-ctr/hmac-sha1/none</code>) is tried for a number of command executions,
+ * measuring handshake time and output throughput. The candidate with the lowest estimated
+ * cost (mean handshake time plus mean output size over throughput) is then preferred for
+ * all later sessions to that user at host. Candidates that have not seen an output large
+ * enough to measure throughput are charged the throughput pooled over all candidates, so
+ * that they do not win on handshake time alone. Decisions may be persisted to a properties
+ * file, so that they survive restarts. The file is written in the background (see {@link #flush()}).
+ *
+ * Candidates are preferred, not enforced: Jsch defaults follow the candidate algorithms, so
+ * a server that does not support a candidate still negotiates a connection (in which case
+ * measurements are attributed to the candidate regardless).
+ *
+ * Compression candidates are only included by default if JZlib (required by Jsch for
+ * compression) is on the classpath.
+ *
+ * @author jpalomaki
+ */
+public final class AdaptiveAlgorithms {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveAlgorithms.class);
+    private static final long MIN_THROUGHPUT_BYTES = 64L * 1024;
+
+    private final String store;
+    private final ConcurrentMap<String, HostStatistics> hosts = new ConcurrentHashMap<String, HostStatistics>();
+    private final Map<String, Algorithms> decisions = new LinkedHashMap<String, Algorithms>();
+    private final ThreadPoolExecutor saver;
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+    private volatile List<Algorithms> candidates = defaultCandidates();
+    private volatile int samples = 3;
+
+    /**
+     * Constructs new {@link AdaptiveAlgorithms} without persistence.
+     */
+    public AdaptiveAlgorithms() {
+        this.store = null;
+        this.saver = null;
+    }
+
+    /**
+     * Constructs new {@link AdaptiveAlgorithms}, persisting decisions to the given
+     * properties file, which is loaded if it exists.
+     *
+     * @param store Path to properties file, not <code>null</code> or empty
+     */
+    public AdaptiveAlgorithms(String store) {
+        Assert.hasText(store, "Path to store must not be null or empty");
+        this.store = store;
+        this.saver = new ThreadPoolExecutor(1, 1, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory("adaptive-algorithms-saver"));
+        this.saver.allowCoreThreadTimeOut(true);
+        load();
+    }
+
+    /**
+     * Sets the candidates, each specified as <code>cipher/mac/compression</code>,
+     * e.g. <code>aes256-ctr/hmac-sha2-256/zlib@openssh.com</code>.
+     */
+    public void setCandidates(String... candidates) {
+        Assert.isTrue(candidates != null && candidates.length > 0, "Candidates must not be null or empty");
+        List<Algorithms> parsed = new ArrayList<Algorithms>(candidates.length);
+        for (String candidate : candidates) {
+            parsed.add(Algorithms.parse(candidate));
+        }
+        this.candidates = Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Sets the number of executions measured per candidate before deciding (default 3).
+     */
+    public void setSamples(int samples) {
+        Assert.isTrue(samples > 0, "Samples must be > 0");
+        this.samples = samples;
+    }
+
+    /**
+     * Returns the preferred algorithms (<code>cipher/mac/compression</code>)
+     * for the given user at host, or <code>null</code> if not decided yet.
+     */
+    public String preferredFor(UserAtHost userAtHost) {
+        Algorithms algorithms;
+        synchronized (decisions) {
+            algorithms = decisions.get(toKey(userAtHost));
+        }
+        return algorithms != null ? algorithms.toString() : null;
+    }
+
+    /**
+     * Returns the measurements of each candidate tried for the given user at host,
+     * keyed by candidate, e.g. <code>aes128-ctr/hmac-sha1/none: samples=3
+     * handshakeMs=41.2 throughputKiBs=51234.0</code>.
+     */
+    public Map<String, String> measurementsFor(UserAtHost userAtHost) {
+        HostStatistics statistics = hosts.get(toKey(userAtHost));
+        return statistics != null ? statistics.describe() : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * Waits for decisions made so far to be written to the store (if any). Decisions are
+     * written in the background, so call this e.g. before the JVM exits.
+     */
+    public void flush() {
+        if (saver == null) {
+            return;
+        }
+        try {
+            saver.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return null; // Runs after all saves queued before it
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Forgets measurements and the decision for the given user at host, so that
+     * candidates are measured again (e.g. after the network path has changed).
+     */
+    public void forget(UserAtHost userAtHost) {
+        String key = toKey(userAtHost);
+        hosts.remove(key);
+        boolean removed;
+        synchronized (decisions) {
+            removed = decisions.remove(key) != null;
+        }
+        if (removed) {
+            save();
+        }
+    }
+
+    /**
+     * Applies the algorithms to use to the given (unconnected) session to the given user at host.
+     */
+    void apply(Session session, UserAtHost userAtHost) {
+        select(userAtHost).apply(session);
+    }
+
+    /**
+     * Records a command execution over the given (connected) session to the given user at host.
+     *
+     * @param handshakeNanos Time taken to connect the session
+     * @param bytes Output bytes received
+     * @param transferNanos Time from first to last output byte received
+     */
+    void record(Session session, UserAtHost userAtHost, long handshakeNanos, long bytes, long transferNanos) {
+        String key = toKey(userAtHost);
+        synchronized (decisions) {
+            if (decisions.containsKey(key)) {
+                return;
+            }
+        }
+        Algorithms algorithms = Algorithms.of(session);
+        HostStatistics statistics = statisticsFor(key);
+        Algorithms best = statistics.record(algorithms, handshakeNanos, bytes, transferNanos, candidates, samples);
+        if (best != null) {
+            LOGGER.debug("Preferring " + best + " for " + key + ", measured " + statistics.describe());
+            synchronized (decisions) {
+                decisions.put(key, best);
+            }
+            save();
+        }
+    }
+
+    private Algorithms select(UserAtHost userAtHost) {
+        String key = toKey(userAtHost);
+        Algorithms decided;
+        synchronized (decisions) {
+            decided = decisions.get(key);
+        }
+        return decided != null ? decided : statisticsFor(key).nextCandidate(candidates);
+    }
+
+    private HostStatistics statisticsFor(String key) {
+        HostStatistics statistics = hosts.get(key);
+        if (statistics == null) {
+            HostStatistics created = new HostStatistics();
+            statistics = hosts.putIfAbsent(key, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    private void load() {
+        File file = new File(store);
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load algorithm preferences from " + store, e);
+            return;
+        }
+        synchronized (decisions) {
+            for (String key : properties.stringPropertyNames()) {
+                try {
+                    decisions.put(key, Algorithms.parse(properties.getProperty(key)));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Ignoring malformed algorithm preference for " + key + " in " + store);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules writing all decisions to the store (if any) on the saver thread, so that
+     * callers (the event loop of the client, in particular) never wait for file I/O.
+     * Decisions made while a write is pending are coalesced into that write.
+     */
+    private void save() {
+        if (saver == null || !savePending.compareAndSet(false, true)) {
+            return;
+        }
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                savePending.set(false); // Before the snapshot, so that later decisions schedule another write
+                Properties properties = new Properties();
+                synchronized (decisions) {
+                    for (Map.Entry<String, Algorithms> decision : decisions.entrySet()) {
+                        properties.setProperty(decision.getKey(), decision.getValue().toString());
+                    }
+                }
+                write(properties);
+            }
+        });
+    }
+
+    /**
+     * Writes the given decisions to the store, replacing the file atomically.
+     */
+    private void write(Properties properties) {
+        File file = new File(store);
+        File temporary = new File(store + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                properties.store(out, "Preferred cipher/mac/compression per user@host:port");
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                file.delete();
+                if (!temporary.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temporary + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save algorithm preferences to " + store, e);
+        }
+    }
+
+    private static String toKey(UserAtHost userAtHost) {
+        Assert.notNull(userAtHost, "User at host must not be null");
+        return userAtHost.user + "@" + userAtHost.host + ":" + userAtHost.port;
+    }
+
+    private static List<Algorithms> defaultCandidates() {
+        List<Algorithms> candidates = new ArrayList<Algorithms>();
+        candidates.add(Algorithms.parse("aes128-ctr/hmac-sha1/none"));
+        candidates.add(Algorithms.parse("aes128-ctr/hmac-md5/none"));
+        candidates.add(Algorithms.parse("aes256-ctr/hmac-sha2-256/none"));
+        try {
+            Class.forName("com.jcraft.jzlib.ZStream");
+            candidates.add(Algorithms.parse("aes128-ctr/hmac-sha1/zlib@openssh.com"));
+        } catch (ClassNotFoundException e) {
+            // No compression support
+        }
+        return Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     * A cipher, MAC and compression combination.
+     */
+    static final class Algorithms {
+
+        final String cipher;
+        final String mac;
+        final String compression;
+
+        private Algorithms(String cipher, String mac, String compression) {
+            this.cipher = cipher;
+            this.mac = mac;
+            this.compression = compression;
+        }
+
+        static Algorithms parse(String spec) {
+            Assert.hasText(spec, "Algorithms must not be null or empty");
+            String[] parts = spec.trim().split("/");
+            Assert.isTrue(parts.length == 3, "Algorithms must be specified as cipher/mac/compression: " + spec);
+            for (String part : parts) {
+                Assert.isTrue(part.matches("[\\w.@-]+"), "Malformed algorithms: " + spec);
+            }
+            return new Algorithms(parts[0], parts[1], parts[2]);
+        }
+
+        /**
+         * Returns the algorithms preferred by the given session.
+         */
+        static Algorithms of(Session session) {
+            return new Algorithms(first(session.getConfig("cipher.s2c")),
+                    first(session.getConfig("mac.s2c")), first(session.getConfig("compression.s2c")));
+        }
+
+        void apply(Session session) {
+            for (String direction : Arrays.asList("s2c", "c2s")) {
+                session.setConfig("cipher." + direction, prefer(cipher, JSch.getConfig("cipher." + direction)));
+                session.setConfig("mac." + direction, prefer(mac, JSch.getConfig("mac." + direction)));
+                session.setConfig("compression." + direction, prefer(compression, "none"));
+            }
+        }
+
+        private static String prefer(String algorithm, String defaults) {
+            StringBuilder preference = new StringBuilder(algorithm);
+            for (String other : defaults.split(",")) {
+                if (!other.equals(algorithm)) {
+                    preference.append(',').append(other);
+                }
+            }
+            return preference.toString();
+        }
+
+        private static String first(String algorithms) {
+            return algorithms.split(",")[0];
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Algorithms && toString().equals(other.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return cipher + "/" + mac + "/" + compression;
+        }
+    }
+
+    /**
+     * Measurements of candidates for a single user at host.
+     */
+    private static final class HostStatistics {
+
+        private final Map<Algorithms, Measurement> measurements = new LinkedHashMap<Algorithms, Measurement>();
+        private long totalSamples = 0L;
+        private long totalBytes = 0L;
+        private long pooledTransferBytes = 0L;
+        private long pooledTransferNanos = 0L;
+
+        synchronized Algorithms nextCandidate(List<Algorithms> candidates) {
+            Algorithms next = null;
+            long fewest = Long.MAX_VALUE;
+            for (Algorithms candidate : candidates) {
+                long assigned = measurementFor(candidate).assigned;
+                if (assigned < fewest) {
+                    next = candidate;
+                    fewest = assigned;
+                }
+            }
+            measurementFor(next).assigned++;
+            return next;
+        }
+
+        /**
+         * Records a sample, returning the best candidate once all have been sampled enough, otherwise null.
+         */
+        synchronized Algorithms record(Algorithms algorithms, long handshakeNanos, long bytes, long transferNanos, List<Algorithms> candidates, int samples) {
+            Measurement measurement = measurementFor(algorithms);
+            measurement.samples++;
+            measurement.handshakeNanos += handshakeNanos;
+            if (bytes >= MIN_THROUGHPUT_BYTES && transferNanos > 0L) {
+                measurement.transferBytes += bytes;
+                measurement.transferNanos += transferNanos;
+                pooledTransferBytes += bytes;
+                pooledTransferNanos += transferNanos;
+            }
+            totalSamples++;
+            totalBytes += bytes;
+            Algorithms best = null;
+            double lowestCost = Double.MAX_VALUE;
+            for (Algorithms candidate : candidates) {
+                Measurement candidateMeasurement = measurementFor(candidate);
+                if (candidateMeasurement.samples < samples) {
+                    return null;
+                }
+                double cost = candidateMeasurement.estimatedCostNanos((double)totalBytes / totalSamples, pooledTransferBytes, pooledTransferNanos);
+                if (cost < lowestCost) {
+                    best = candidate;
+                    lowestCost = cost;
+                }
+            }
+            return best;
+        }
+
+        synchronized Map<String, String> describe() {
+            Map<String, String> descriptions = new LinkedHashMap<String, String>();
+            for (Map.Entry<Algorithms, Measurement> entry : measurements.entrySet()) {
+                descriptions.put(entry.getKey().toString(), entry.getValue().toString());
+            }
+            return descriptions;
+        }
+
+        private Measurement measurementFor(Algorithms algorithms) {
+            Measurement measurement = measurements.get(algorithms);
+            if (measurement == null) {
+                measurement = new Measurement();
+                measurements.put(algorithms, measurement);
+            }
+            return measurement;
+        }
+    }
+
+    private static final class Measurement {
+
+        private long assigned = 0L;
+        private long samples = 0L;
+        private long handshakeNanos = 0L;
+        private long transferBytes = 0L;
+        private long transferNanos = 0L;
+
+        /**
+         * Estimates the cost of a mean execution, falling back to the given pooled throughput
+         * (of all candidates) if this candidate has no throughput measured.
+         */
+        double estimatedCostNanos(double meanBytes, long pooledTransferBytes, long pooledTransferNanos) {
+            double cost = (double)handshakeNanos / samples;
+            if (transferBytes > 0L) {
+                cost += meanBytes * transferNanos / transferBytes;
+            } else if (pooledTransferBytes > 0L) {
+                cost += meanBytes * pooledTransferNanos / pooledTransferBytes;
+            }
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            double handshakeMillis = samples > 0L ? handshakeNanos / 1e6 / samples : 0.0;
+            double throughput = transferNanos > 0L ? transferBytes / 1024.0 / (transferNanos / 1e9) : 0.0;
+            return String.format("samples=%d handshakeMs=%.1f throughputKiBs=%.1f", samples, handshakeMillis, throughput);
+        }
+    }
+}
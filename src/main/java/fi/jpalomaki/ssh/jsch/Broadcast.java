@@ -0,0 +1,270 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.concurrent.TaskExecutors;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.ByteBufferInputStream;
+
+/**
+ * Sends the same content (e.g. an artifact) to the standard input of a command on many
+ * hosts in parallel. Thread-safe.
+ *
+ * Files are memory-mapped (read-only) once per send, and every host streams from a view
+ * of the same mapping (or buffer), so that the content is neither read into heap nor
+ * copied per host. Progress can be followed per host while the transfers run.
+ *
+ * Each host also computes the SHA-256 checksum of the content as received (with
+ * <code>sha256sum</code>, on the way to the command), which is compared with the checksum
+ * of the content sent. This requires <code>mktemp</code>, <code>mkfifo</code>,
+ * <code>tee</code> and <code>sha256sum</code> (e.g. GNU coreutils) on the hosts.
+ *
+ * @author jpalomaki
+ */
+public final class Broadcast implements Closeable {
+
+    private static final String CHECKSUM_MARKER = "\nbroadcast-sha256=";
+
+    private final JschSshClient sshClient;
+    private final ExecutorService executor;
+
+    /**
+     * Constructs a new {@link Broadcast}.
+     *
+     * @param sshClient SSH client, not <code>null</code>
+     * @param maxParallelism Maximum number of hosts to send to in parallel, 0 for no limit
+     */
+    public Broadcast(JschSshClient sshClient, int maxParallelism) {
+        Assert.notNull(sshClient, "SSH client must not be null");
+        this.sshClient = sshClient;
+        this.executor = TaskExecutors.newTaskExecutor("ssh-broadcast", maxParallelism);
+    }
+
+    /**
+     * Sends the given file to the standard input of the given command on the given hosts, returning immediately.
+     *
+     * @param command Command to execute, e.g. <code>cat > /opt/app.tar</code>, not <code>null</code> or empty
+     * @param source File to send, at most 2 GB, not <code>null</code>
+     * @param userAtHosts Users at hosts (distinct instances), not <code>null</code>
+     * @return Transfers, in iteration order of the given hosts
+     * @throws SshClientException If the file could not be mapped
+     */
+    public Transfers send(String command, Path source, Collection<UserAtHost> userAtHosts) throws SshClientException {
+        Assert.notNull(source, "Source must not be null");
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            Assert.isTrue(channel.size() <= Integer.MAX_VALUE, "Source must be <= 2 GB");
+            mapping = channel.map(MapMode.READ_ONLY, 0L, channel.size()); // Stays valid after the channel is closed
+        } catch (IOException e) {
+            throw new SshClientException("Failed to map " + source, e);
+        }
+        return send(command, mapping, userAtHosts);
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer to the standard input of the given command
+     * on the given hosts, returning immediately. The buffer must not be modified until done.
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param source Bytes to send (heap, direct or mapped buffer), not <code>null</code>
+     * @param userAtHosts Users at hosts (distinct instances), not <code>null</code>
+     * @return Transfers, in iteration order of the given hosts
+     */
+    public Transfers send(String command, ByteBuffer source, Collection<UserAtHost> userAtHosts) {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(source, "Source must not be null");
+        Assert.notNull(userAtHosts, "Users at hosts must not be null");
+        Map<UserAtHost, Transfer> transfers = new LinkedHashMap<UserAtHost, Transfer>(userAtHosts.size() * 2);
+        for (UserAtHost userAtHost : userAtHosts) {
+            Assert.isTrue(!transfers.containsKey(userAtHost), "Users at hosts must be distinct: " + userAtHost);
+            transfers.put(userAtHost, null); // Placeholder, keeps iteration order
+        }
+        Transfers sent = new Transfers(source.asReadOnlyBuffer(), transfers);
+        final String verifyingCommand = verifying(command);
+        for (final UserAtHost userAtHost : userAtHosts) {
+            final ByteBufferInputStream stdin = new ByteBufferInputStream(sent.content.duplicate());
+            final Transfer transfer = new Transfer(sent, stdin);
+            transfer.result = executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return transfer.received(sshClient.executeCommand(verifyingCommand, stdin, userAtHost));
+                }
+            });
+            transfers.put(userAtHost, transfer);
+        }
+        return sent;
+    }
+
+    /**
+     * Wraps the given command so that standard input is also piped (through a FIFO) to
+     * <code>sha256sum</code>, whose checksum is appended to standard error, after a marker.
+     * Input the command leaves unread is drained, so that the transfer completes (failing
+     * verification) rather than stalls. Exits with the exit code of the command.
+     */
+    static String verifying(String command) {
+        return "d=$(mktemp -d) && mkfifo \"$d/in\" || exit 1; "
+                + "sha256sum < \"$d/in\" > \"$d/sum\" & "
+                + "tee \"$d/in\" | {\n" + command + "\n}; "
+                + "rc=$?; cat > /dev/null; wait; printf '" + CHECKSUM_MARKER.replace("\n", "\\n") + "%s\\n' \"$(cut -d ' ' -f 1 \"$d/sum\")\" >&2; "
+                + "rm -rf \"$d\"; exit $rc";
+    }
+
+    /**
+     * Stops sending, interrupting (and thereby cancelling) running transfers.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The transfers of a single send.
+     */
+    public static final class Transfers {
+
+        private final ByteBuffer content;
+        private final Map<UserAtHost, Transfer> transfers;
+        private String sha256;
+
+        private Transfers(ByteBuffer content, Map<UserAtHost, Transfer> transfers) {
+            this.content = content;
+            this.transfers = Collections.unmodifiableMap(transfers);
+        }
+
+        /**
+         * Returns the size of the content sent to each host, in bytes.
+         */
+        public long getSize() {
+            return content.remaining();
+        }
+
+        /**
+         * Returns the SHA-256 checksum of the content (hex). Computed on first call.
+         */
+        public synchronized String getSha256() {
+            if (sha256 == null) {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    digest.update(content.duplicate());
+                    StringBuilder hex = new StringBuilder(64);
+                    for (byte b : digest.digest()) {
+                        hex.append(String.format("%02x", b & 0xff));
+                    }
+                    sha256 = hex.toString();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("SHA-256 not supported", e);
+                }
+            }
+            return sha256;
+        }
+
+        /**
+         * Returns the transfers by user at host.
+         */
+        public Map<UserAtHost, Transfer> getTransfers() {
+            return transfers;
+        }
+
+        /**
+         * Returns the total number of bytes sent thus far, over all hosts.
+         */
+        public long getBytesSent() {
+            long bytesSent = 0L;
+            for (Transfer transfer : transfers.values()) {
+                bytesSent += transfer.getBytesSent();
+            }
+            return bytesSent;
+        }
+    }
+
+    /**
+     * The transfer to a single host.
+     */
+    public static final class Transfer {
+
+        private final Transfers transfers;
+        private final long size;
+        private final ByteBufferInputStream stdin;
+        private volatile Future<Result> result;
+        private volatile String remoteSha256;
+
+        private Transfer(Transfers transfers, ByteBufferInputStream stdin) {
+            this.transfers = transfers;
+            this.size = transfers.getSize();
+            this.stdin = stdin;
+        }
+
+        /**
+         * Takes the checksum computed on the host from (the end of) standard error of the given
+         * result, returning the result without it.
+         */
+        private Result received(Result result) {
+            byte[] stderr = result.stderr.array();
+            String text = new String(stderr, StandardCharsets.ISO_8859_1); // One char per byte
+            int marker = text.lastIndexOf(CHECKSUM_MARKER);
+            if (marker < 0) {
+                return result; // E.g. standard error exceeded its maximum size
+            }
+            String checksum = text.substring(marker + CHECKSUM_MARKER.length()).trim();
+            remoteSha256 = checksum.matches("[0-9a-f]{64}") ? checksum : null;
+            byte[] stdout = result.stdout.array();
+            return new Result(result.exitCode, stdout, Arrays.copyOf(stderr, marker), result.earlyTerminated);
+        }
+
+        /**
+         * Returns the number of bytes sent thus far (handed to the SSH channel).
+         */
+        public long getBytesSent() {
+            return stdin.getBytesRead();
+        }
+
+        /**
+         * Returns the fraction of the content sent thus far, 0.0 to 1.0.
+         */
+        public double getProgress() {
+            return size > 0L ? (double)getBytesSent() / size : (result.isDone() ? 1.0 : 0.0);
+        }
+
+        /**
+         * Returns the future result of the command.
+         */
+        public Future<Result> getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the SHA-256 checksum (hex) of the content as received on the host, or
+         * <code>null</code> if not (yet) known (e.g. the command has not completed).
+         */
+        public String getRemoteSha256() {
+            return remoteSha256;
+        }
+
+        /**
+         * Returns true if the content as received on the host has the checksum of the content sent.
+         */
+        public boolean isVerified() {
+            String received = remoteSha256;
+            return received != null && received.equals(transfers.getSha256());
+        }
+    }
+}
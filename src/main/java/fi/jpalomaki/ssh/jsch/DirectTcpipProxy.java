@@ -0,0 +1,61 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+/**
+ * Jsch {@link Proxy} that tunnels a connection through a <code>direct-tcpip</code>
+ * channel of an (already connected) jump host session. Think <code>ssh -J</code>.
+ *
+ * @author jpalomaki
+ */
+final class DirectTcpipProxy implements Proxy {
+
+    private final Session jumpSession;
+    private ChannelDirectTCPIP channel;
+    private InputStream in;
+    private OutputStream out;
+
+    DirectTcpipProxy(Session jumpSession) {
+        this.jumpSession = jumpSession;
+    }
+
+    @Override
+    public void connect(SocketFactory socketFactory, String host, int port, int timeout) throws JSchException, IOException {
+        channel = (ChannelDirectTCPIP)jumpSession.openChannel("direct-tcpip");
+        channel.setHost(host);
+        channel.setPort(port);
+        in = channel.getInputStream();
+        out = channel.getOutputStream();
+        channel.connect(timeout);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            channel.disconnect();
+        }
+    }
+}
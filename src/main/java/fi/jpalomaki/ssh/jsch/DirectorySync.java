@@ -0,0 +1,578 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Incrementally synchronizes a local directory tree to a remote directory over exec
+ * channels, sending only what changed. Thread-safe.
+ *
+ * A sync takes (at most) three commands:
+ * <ol>
+ * <li>One command lists the size and mtime of every remote file, and the SHA-256 of those
+ *     whose size and mtime differ from the previous sync to the same remote directory.</li>
+ * <li>If large files (see {@link #setDeltaThreshold(long)}) changed, one command lists
+ *     the SHA-256 of every fixed-size block of them.</li>
+ * <li>One command receives a single streamed tar archive holding new and changed files
+ *     in whole, and the changed blocks of large files, and applies it: files are staged
+ *     in the remote directory and then moved into place, one file at a time.</li>
+ * </ol>
+ *
+ * Local file hashes are cached by path, size and mtime, so that unchanged local files are
+ * not re-read on every sync. Likewise, remote file hashes are cached by path, size and mtime
+ * (in seconds), so that unchanged remote files are not re-read by the remote host either.
+ * Files modified in the second they are listed in are not cached. Like the quick check of
+ * <code>rsync</code>, this misses a remote change that keeps both size and mtime (e.g. one
+ * that restores the mtime). The remote host needs <code>find</code>, <code>stat</code>,
+ * <code>sha256sum</code>, <code>dd</code>, <code>tar</code>, <code>grep</code> and
+ * <code>xargs</code> (GNU or compatible).
+ * Only regular files are synced; file names must not contain newlines or backslashes.
+ *
+ * @author jpalomaki
+ */
+public final class DirectorySync {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectorySync.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String STAGING_PREFIX = ".sync.";
+    private static final String STAGING_TEMPLATE = STAGING_PREFIX + "XXXXXX"; // For mktemp
+    private static final String STAGING_GLOB = STAGING_PREFIX + "[A-Za-z0-9][A-Za-z0-9][A-Za-z0-9][A-Za-z0-9][A-Za-z0-9][A-Za-z0-9]";
+    private static final String SEPARATOR = "--";
+    private static final String END = "-- end";
+
+    private final JschSshClient sshClient;
+    private final ConcurrentMap<Path, LocalFile> localManifest = new ConcurrentHashMap<Path, LocalFile>();
+    private final ConcurrentMap<String, Map<String, RemoteFile>> remoteManifests = new ConcurrentHashMap<String, Map<String, RemoteFile>>();
+    private volatile int blockSize = 256 * 1024;
+    private volatile long deltaThreshold = 1024L * 1024;
+    private volatile boolean delete = false;
+
+    private final AtomicLong localHashCount = new AtomicLong();
+    private final AtomicLong localCacheHitCount = new AtomicLong();
+
+    /**
+     * Constructs a new {@link DirectorySync}.
+     *
+     * @param sshClient SSH client, not <code>null</code>
+     */
+    public DirectorySync(JschSshClient sshClient) {
+        Assert.notNull(sshClient, "SSH client must not be null");
+        this.sshClient = sshClient;
+    }
+
+    /**
+     * Sets the block size of block-level deltas (default 256 KB).
+     */
+    public void setBlockSize(int blockSize) {
+        Assert.isTrue(blockSize >= 512, "Block size must be >= 512");
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets the size at and above which changed files are sent as block-level deltas (default 1 MB).
+     */
+    public void setDeltaThreshold(long deltaThreshold) {
+        Assert.isTrue(deltaThreshold >= 0L, "Delta threshold must be >= 0");
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * Sets whether remote files missing locally are deleted (default false).
+     */
+    public void setDelete(boolean delete) {
+        this.delete = delete;
+    }
+
+    /**
+     * Returns the number of local files hashed (excluding cache hits).
+     */
+    public long getLocalHashCount() {
+        return localHashCount.get();
+    }
+
+    /**
+     * Returns the number of local file hashes served from cache.
+     */
+    public long getLocalCacheHitCount() {
+        return localCacheHitCount.get();
+    }
+
+    /**
+     * Synchronizes the given local directory to the given remote directory.
+     *
+     * @param localDirectory Local directory, not <code>null</code>
+     * @param remoteDirectory Remote directory (created if missing), not <code>null</code> or empty
+     * @param userAtHost User at host (and port), not <code>null</code>
+     * @return Report of what was sent, never <code>null</code>
+     * @throws SshClientException If the sync failed (the remote directory may have been partially updated)
+     */
+    public Report sync(Path localDirectory, String remoteDirectory, UserAtHost userAtHost) throws SshClientException {
+        Assert.notNull(localDirectory, "Local directory must not be null");
+        Assert.hasText(remoteDirectory, "Remote directory must not be null or empty");
+        Assert.notNull(userAtHost, "User at host must not be null");
+        int blockSize = this.blockSize;
+        Map<String, LocalFile> local = scan(localDirectory);
+        String manifestKey = userAtHost.user + "@" + userAtHost.host + ":" + userAtHost.port + ":" + remoteDirectory;
+        Map<String, RemoteFile> known = remoteManifests.get(manifestKey);
+        known = known != null ? known : new LinkedHashMap<String, RemoteFile>();
+        InputStream knownFiles = new ByteArrayInputStream(knownFiles(known).getBytes(UTF_8)); // A stream, so that EOF is sent even if empty
+        Map<String, RemoteFile> remote = parseManifest(execute(manifestCommand(remoteDirectory), knownFiles, userAtHost, "list files in " + remoteDirectory), known);
+        Report report = new Report();
+        Map<String, RemoteFile> settled = new LinkedHashMap<String, RemoteFile>();
+        for (Map.Entry<String, RemoteFile> entry : remote.entrySet()) {
+            if (entry.getValue().hashed) {
+                report.remoteFilesHashed++;
+            }
+            if (entry.getValue().settled) {
+                settled.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> whole = new ArrayList<String>();
+        List<String> patched = new ArrayList<String>();
+        for (Map.Entry<String, LocalFile> entry : local.entrySet()) {
+            LocalFile localFile = entry.getValue();
+            RemoteFile remoteFile = remote.get(entry.getKey());
+            report.bytesTotal += localFile.size;
+            if (remoteFile != null && remoteFile.size == localFile.size && remoteFile.sha256.equals(localFile.sha256)) {
+                report.filesUnchanged++;
+            } else if (remoteFile != null && localFile.size >= deltaThreshold && remoteFile.size >= blockSize) {
+                patched.add(entry.getKey());
+            } else {
+                whole.add(entry.getKey());
+            }
+        }
+        List<String> deleted = new ArrayList<String>();
+        if (delete) {
+            for (String path : remote.keySet()) {
+                if (!local.containsKey(path)) {
+                    deleted.add(path);
+                }
+            }
+        }
+        report.filesChecked = local.size();
+        for (List<String> changed : Arrays.asList(whole, patched, deleted)) {
+            settled.keySet().removeAll(changed); // Hashed again on the next sync, whatever their mtime
+        }
+        remoteManifests.put(manifestKey, Collections.unmodifiableMap(settled)); // Complete, as concurrent syncs read it
+        if (whole.isEmpty() && patched.isEmpty() && deleted.isEmpty()) {
+            return report;
+        }
+        List<List<String>> remoteBlocks = patched.isEmpty() ? new ArrayList<List<String>>() :
+            parseBlockHashes(execute(blockHashesCommand(remoteDirectory, patched, remote, blockSize), new ByteArrayInputStream(new byte[0]), userAtHost, "hash blocks in " + remoteDirectory));
+        if (remoteBlocks.size() != patched.size()) {
+            throw new SshClientException("Truncated remote block hash list (max stdout size too small?)");
+        }
+        TarArchive archive = new TarArchive();
+        StringBuilder script = new StringBuilder("set -e\ns=$1\n");
+        Set<String> directories = new LinkedHashSet<String>();
+        for (String path : whole) {
+            int slash = path.lastIndexOf('/');
+            if (slash > 0) {
+                directories.add(path.substring(0, slash));
+            }
+        }
+        for (String directory : directories) {
+            script.append("mkdir -p ").append(quote("./" + directory)).append('\n');
+        }
+        for (String path : whole) {
+            LocalFile localFile = local.get(path);
+            String name = "f/" + report.filesSent++;
+            archive.addFile(name, localFile.path, 0L, localFile.size, localFile.executable ? 0755 : 0644, localFile.mtime / 1000);
+            script.append("mv -f \"$s/").append(name).append("\" ").append(quote("./" + path)).append('\n');
+        }
+        int blocks = 0;
+        for (int i = 0; i < patched.size(); i++) {
+            String path = patched.get(i);
+            LocalFile localFile = local.get(path);
+            List<String> localBlocks = blockHashes(localFile.path, localFile.size, blockSize);
+            script.append("cp -p ").append(quote("./" + path)).append(" \"$s/p\"\n");
+            for (int block = 0; block < localBlocks.size(); block++) {
+                if (block < remoteBlocks.get(i).size() && localBlocks.get(block).equals(remoteBlocks.get(i).get(block))) {
+                    continue;
+                }
+                String name = "b/" + blocks++;
+                long offset = (long)block * blockSize;
+                archive.addFile(name, localFile.path, offset, Math.min(blockSize, localFile.size - offset), 0644, localFile.mtime / 1000);
+                script.append("dd if=\"$s/").append(name).append("\" of=\"$s/p\" bs=").append(blockSize)
+                    .append(" seek=").append(block).append(" count=1 conv=notrunc 2>/dev/null\n");
+            }
+            script.append("dd if=/dev/null of=\"$s/p\" bs=1 seek=").append(localFile.size).append(" 2>/dev/null\n");
+            script.append("mv -f \"$s/p\" ").append(quote("./" + path)).append('\n');
+            report.filesPatched++;
+        }
+        for (String path : deleted) {
+            script.append("rm -f ").append(quote("./" + path)).append('\n');
+            report.filesDeleted++;
+        }
+        archive.addBytes("apply", script.toString().getBytes(UTF_8), 0644, System.currentTimeMillis() / 1000);
+        report.bytesSent = archive.size();
+        LOGGER.debug(String.format("Syncing %s to %s:%s (%d whole, %d patched, %d deleted, %d bytes)", localDirectory, userAtHost,
+                remoteDirectory, report.filesSent, report.filesPatched, report.filesDeleted, report.bytesSent));
+        Result result = sshClient.executeCommand(applyCommand(remoteDirectory), archive.open(), userAtHost);
+        if (result.exitCode != 0) {
+            throw new SshClientException("Failed to apply changes to " + remoteDirectory + " on " + userAtHost + ": " + result.stderrAsText().trim());
+        }
+        return report;
+    }
+
+    private String execute(String command, InputStream stdin, UserAtHost userAtHost, String description) {
+        Result result = sshClient.executeCommand(command, stdin, userAtHost);
+        if (result.exitCode != 0) {
+            throw new SshClientException("Failed to " + description + " on " + userAtHost + ": " + result.stderrAsText().trim());
+        }
+        return result.stdoutAsText();
+    }
+
+    private Map<String, LocalFile> scan(final Path root) {
+        final Map<String, LocalFile> files = new LinkedHashMap<String, LocalFile>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (attributes.isRegularFile()) {
+                        String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                        files.put(path, localFile(file, attributes));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new SshClientException("Failed to read " + root, e);
+        }
+        return files;
+    }
+
+    private LocalFile localFile(Path file, BasicFileAttributes attributes) throws IOException {
+        Path key = file.toAbsolutePath();
+        long size = attributes.size();
+        long mtime = attributes.lastModifiedTime().toMillis();
+        LocalFile cached = localManifest.get(key);
+        if (cached != null && cached.size == size && cached.mtime == mtime) {
+            localCacheHitCount.incrementAndGet();
+            return cached;
+        }
+        localHashCount.incrementAndGet();
+        List<String> hash = hash(file, size, size);
+        LocalFile localFile = new LocalFile(file, size, mtime, Files.isExecutable(file), hash.isEmpty() ? hex(digest().digest()) : hash.get(0));
+        localManifest.put(key, localFile);
+        return localFile;
+    }
+
+    private static List<String> blockHashes(Path file, long size, int blockSize) {
+        try {
+            return hash(file, size, blockSize);
+        } catch (IOException e) {
+            throw new SshClientException("Failed to read " + file, e);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of every block of the given size of (the given size of) the given file.
+     */
+    private static List<String> hash(Path file, long size, long blockSize) throws IOException {
+        List<String> hashes = new ArrayList<String>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest digest = digest();
+            long position = 0L;
+            long blockEnd = Math.min(blockSize, size);
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), blockEnd - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File shrank while reading: " + file);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+                if (position == blockEnd) {
+                    hashes.add(hex(digest.digest()));
+                    blockEnd = Math.min(blockEnd + blockSize, size);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the stat lines (as listed by a manifest command) of the given known remote files,
+     * to be passed as standard input to a manifest command.
+     */
+    static String knownFiles(Map<String, RemoteFile> known) {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, RemoteFile> entry : known.entrySet()) {
+            lines.append(entry.getValue().size).append(' ').append(entry.getValue().mtimeSeconds).append(" ./").append(entry.getKey()).append('\n');
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Returns a command listing the time, then size and mtime of every file under the given directory
+     * (nothing if missing, and excluding staging directories of concurrent syncs), then the SHA-256
+     * of every file whose stat line is not among those read from standard input (see {@link #knownFiles(Map)}).
+     */
+    static String manifestCommand(String remoteDirectory) {
+        String find = "find . -type f ! -path './" + STAGING_GLOB + "/*' -exec stat -c '%s %Y %n' {} +";
+        return "cd " + quote(remoteDirectory) + " 2>/dev/null || { date +%s; echo '" + SEPARATOR + "'; echo '" + END + "'; exit 0; }\n" +
+            "k=$(mktemp) && trap 'rm -f \"$k\" \"$k.s\"' EXIT && cat > \"$k\" && date +%s && " + find + " > \"$k.s\" && cat \"$k.s\" && " +
+            "echo '" + SEPARATOR + "' && { grep -vxF -f \"$k\" \"$k.s\" | sed 's/^[0-9]* [0-9]* //' | tr '\\n' '\\0' | xargs -0 -r sha256sum; } && " +
+            "echo '" + END + "'";
+    }
+
+    /**
+     * Parses the output of a manifest command into remote files by path, taking the
+     * hashes of files not hashed by the command from the given known files.
+     */
+    static Map<String, RemoteFile> parseManifest(String output, Map<String, RemoteFile> known) {
+        String[] lines = output.split("\n");
+        if (lines.length < 2 || !lines[lines.length - 1].equals(END)) {
+            throw new SshClientException("Truncated remote file list (max stdout size too small?)");
+        }
+        long listedAt = Long.parseLong(lines[0].trim());
+        Map<String, long[]> stats = new LinkedHashMap<String, long[]>();
+        Map<String, String> hashes = new LinkedHashMap<String, String>();
+        boolean hashing = false;
+        for (int i = 1; i < lines.length - 1; i++) {
+            String line = lines[i];
+            if (line.equals(SEPARATOR)) {
+                hashing = true;
+            } else if (!hashing) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length == 3 && fields[2].startsWith("./")) {
+                    stats.put(fields[2].substring(2), new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+                }
+            } else if (line.length() > 66 && line.startsWith("./", 66)) { // Escaped names start with a backslash
+                hashes.put(line.substring(68), line.substring(0, 64));
+            }
+        }
+        Map<String, RemoteFile> files = new LinkedHashMap<String, RemoteFile>();
+        for (Map.Entry<String, long[]> stat : stats.entrySet()) {
+            String path = stat.getKey();
+            long size = stat.getValue()[0];
+            long mtimeSeconds = stat.getValue()[1];
+            boolean settled = mtimeSeconds < listedAt; // Otherwise it may still change within the same second
+            String sha256 = hashes.get(path);
+            RemoteFile knownFile = known.get(path);
+            if (sha256 != null) {
+                files.put(path, new RemoteFile(size, mtimeSeconds, sha256, true, settled));
+            } else if (knownFile != null && knownFile.size == size && knownFile.mtimeSeconds == mtimeSeconds) {
+                files.put(path, new RemoteFile(size, mtimeSeconds, knownFile.sha256, false, settled));
+            } // Otherwise removed between stat and hash
+        }
+        return files;
+    }
+
+    /**
+     * Returns a command listing SHA-256 of every block of the given remote files, a separator line after each file.
+     */
+    static String blockHashesCommand(String remoteDirectory, List<String> paths, Map<String, RemoteFile> remote, int blockSize) {
+        StringBuilder command = new StringBuilder("cd ").append(quote(remoteDirectory)).append(" || exit 1\n");
+        for (String path : paths) {
+            long blocks = (remote.get(path).size + blockSize - 1) / blockSize;
+            command.append("i=0; while [ $i -lt ").append(blocks).append(" ]; do dd if=").append(quote("./" + path))
+                .append(" bs=").append(blockSize).append(" skip=$i count=1 2>/dev/null | sha256sum; i=$((i+1)); done; echo '")
+                .append(SEPARATOR).append("'\n");
+        }
+        return command.toString();
+    }
+
+    /**
+     * Parses the output of a block hashes command into lists of block hashes, one per file.
+     */
+    static List<List<String>> parseBlockHashes(String output) {
+        List<List<String>> files = new ArrayList<List<String>>();
+        List<String> blocks = new ArrayList<String>();
+        for (String line : output.split("\n")) {
+            if (line.equals(SEPARATOR)) {
+                files.add(blocks);
+                blocks = new ArrayList<String>();
+            } else if (line.length() >= 64) {
+                blocks.add(line.substring(0, 64));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns a command that extracts the archive from stdin into a staging directory and runs its apply script.
+     */
+    static String applyCommand(String remoteDirectory) {
+        return "mkdir -p " + quote(remoteDirectory) + " && cd " + quote(remoteDirectory) + " && s=$(mktemp -d " + STAGING_TEMPLATE + ") && " +
+            "{ tar -xof - -C \"$s\" && sh \"$s/apply\" \"$s\"; r=$?; rm -rf \"$s\"; exit $r; }";
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static final class LocalFile {
+
+        final Path path;
+        final long size;
+        final long mtime;
+        final boolean executable;
+        final String sha256;
+
+        LocalFile(Path path, long size, long mtime, boolean executable, String sha256) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.executable = executable;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * A remote file, as listed by a manifest command.
+     */
+    static final class RemoteFile {
+
+        final long size;
+        final long mtimeSeconds;
+        final String sha256;
+        final boolean hashed;
+        final boolean settled;
+
+        /**
+         * @param hashed Whether the file was hashed by the manifest command (rather than known)
+         * @param settled Whether the file was last modified before the second it was listed in,
+         *        so that its size and mtime identify its content
+         */
+        RemoteFile(long size, long mtimeSeconds, String sha256, boolean hashed, boolean settled) {
+            this.size = size;
+            this.mtimeSeconds = mtimeSeconds;
+            this.sha256 = sha256;
+            this.hashed = hashed;
+            this.settled = settled;
+        }
+    }
+
+    /**
+     * What a sync checked and sent.
+     */
+    public static final class Report {
+
+        private int filesChecked;
+        private int filesUnchanged;
+        private int filesSent;
+        private int filesPatched;
+        private int filesDeleted;
+        private int remoteFilesHashed;
+        private long bytesTotal;
+        private long bytesSent;
+
+        private Report() {
+            // Filled in by sync
+        }
+
+        /**
+         * Returns the number of local files checked.
+         */
+        public int getFilesChecked() {
+            return filesChecked;
+        }
+
+        /**
+         * Returns the number of files already up to date.
+         */
+        public int getFilesUnchanged() {
+            return filesUnchanged;
+        }
+
+        /**
+         * Returns the number of files sent in whole (new or changed).
+         */
+        public int getFilesSent() {
+            return filesSent;
+        }
+
+        /**
+         * Returns the number of (large) files sent as block-level deltas.
+         */
+        public int getFilesPatched() {
+            return filesPatched;
+        }
+
+        /**
+         * Returns the number of remote files deleted.
+         */
+        public int getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        /**
+         * Returns the number of remote files hashed by the remote host (new, or changed in size
+         * or mtime since the previous sync), as opposed to known from the previous sync.
+         */
+        public int getRemoteFilesHashed() {
+            return remoteFilesHashed;
+        }
+
+        /**
+         * Returns the total size of the local files, in bytes.
+         */
+        public long getBytesTotal() {
+            return bytesTotal;
+        }
+
+        /**
+         * Returns the size of the archive sent (including tar overhead), in bytes.
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Report [filesChecked=%d, filesUnchanged=%d, filesSent=%d, filesPatched=%d, filesDeleted=%d, remoteFilesHashed=%d, bytesTotal=%d, bytesSent=%d]",
+                    filesChecked, filesUnchanged, filesSent, filesPatched, filesDeleted, remoteFilesHashed, bytesTotal, bytesSent);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * In-memory store of decrypted private keys (identities), routed to users at hosts
+ * by pattern. Thread-safe.
+ *
+ * Each private key is loaded and decrypted once, when added, so that sessions do
+ * not pay key decryption cost. Decrypted keys (all key material held by the Jsch key
+ * pair, including RSA primes and CRT parameters) are zeroed on {@link #close()}.
+ *
+ * Routes are matched in the order added (first match wins) against
+ * <code>&lt;user&gt;@&lt;host&gt;</code> if the pattern contains <code>@</code>,
+ * and against the host otherwise. Patterns may contain <code>*</code> and
+ * <code>?</code> wildcards, e.g. <code>*.prod.example.com</code> or
+ * <code>deploy@10.0.*</code>. Users at hosts matching no route get the
+ * default identity (the first one added, unless set otherwise).
+ *
+ * @author jpalomaki
+ */
+public final class IdentityStore implements Closeable {
+
+    private final Map<String, DecryptedIdentity> identities = new LinkedHashMap<String, DecryptedIdentity>();
+    private final List<Route> routes = new ArrayList<Route>();
+    private String defaultIdentity;
+    private boolean closed = false;
+
+    /**
+     * Loads and decrypts the given private key, adding it to this store with the given name.
+     * Only RSA and DSA keys in the traditional PEM format are supported (by Jsch 0.1.51), so
+     * new-format OpenSSH keys (<code>BEGIN OPENSSH PRIVATE KEY</code>) fail to load.
+     *
+     * @param name Identity name, not <code>null</code> or empty
+     * @param privateKey Path to private key file, not <code>null</code> or empty
+     * @param passphrase Private key passphrase, may be <code>null</code> for empty passphrase
+     * @throws SshClientException If the key cannot be loaded or decrypted
+     */
+    public void addIdentity(String name, String privateKey, String passphrase) throws SshClientException {
+        Assert.hasText(name, "Identity name must not be null or empty");
+        Assert.hasText(privateKey, "Path to private key file must not be null");
+        byte[] passphraseBytes = passphrase != null ? passphrase.getBytes() : null;
+        try {
+            DecryptedIdentity identity = new DecryptedIdentity(name, privateKey, passphraseBytes);
+            synchronized (this) {
+                Assert.isTrue(!closed, "Identity store has been closed");
+                DecryptedIdentity previous = identities.put(name, identity);
+                if (previous != null) {
+                    previous.wipe();
+                }
+                if (defaultIdentity == null) {
+                    defaultIdentity = name;
+                }
+            }
+        } catch (JSchException e) {
+            throw new SshClientException("Failed to load private key " + privateKey + " for identity " + name, e);
+        } finally {
+            if (passphraseBytes != null) {
+                Arrays.fill(passphraseBytes, (byte)0);
+            }
+        }
+    }
+
+    /**
+     * Routes users at hosts matching the given pattern to the given identity.
+     *
+     * @param pattern Host or user@host pattern, not <code>null</code> or empty
+     * @param name Identity name, not <code>null</code> or empty
+     */
+    public synchronized void addRoute(String pattern, String name) {
+        Assert.hasText(pattern, "Pattern must not be null or empty");
+        Assert.isTrue(identities.containsKey(name), "No such identity: " + name);
+        routes.add(new Route(pattern, name));
+    }
+
+    /**
+     * Sets the identity for users at hosts matching no route.
+     *
+     * @param name Identity name, not <code>null</code> or empty
+     */
+    public synchronized void setDefaultIdentity(String name) {
+        Assert.isTrue(identities.containsKey(name), "No such identity: " + name);
+        this.defaultIdentity = name;
+    }
+
+    /**
+     * Wipes all decrypted keys from memory. The store may not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (DecryptedIdentity identity : identities.values()) {
+            identity.wipe();
+        }
+        identities.clear();
+        routes.clear();
+    }
+
+    /**
+     * Returns the identity for the given user at host.
+     *
+     * @throws SshClientException If there is no identity for the user at host
+     */
+    synchronized Identity identityFor(UserAtHost userAtHost) throws SshClientException {
+        if (closed) {
+            throw new SshClientException("Identity store has been closed");
+        }
+        String name = defaultIdentity;
+        for (Route route : routes) {
+            if (route.matches(userAtHost)) {
+                name = route.identity;
+                break;
+            }
+        }
+        if (name == null) {
+            throw new SshClientException("No identity for " + userAtHost);
+        }
+        return identities.get(name);
+    }
+
+    private static final class Route {
+
+        private final Pattern pattern;
+        private final boolean matchUser;
+        private final String identity;
+
+        Route(String pattern, String identity) {
+            this.pattern = Pattern.compile(toRegex(pattern), Pattern.CASE_INSENSITIVE);
+            this.matchUser = pattern.contains("@");
+            this.identity = identity;
+        }
+
+        boolean matches(UserAtHost userAtHost) {
+            String subject = matchUser ? userAtHost.user + "@" + userAtHost.host : userAtHost.host;
+            return pattern.matcher(subject).matches();
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (String literal : glob.split("(?=[*?])|(?<=[*?])")) {
+                if (literal.equals("*")) {
+                    regex.append(".*");
+                } else if (literal.equals("?")) {
+                    regex.append(".");
+                } else if (!literal.isEmpty()) {
+                    regex.append(Pattern.quote(literal));
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    /**
+     * Jsch {@link Identity} backed by a key pair that is decrypted once, up front.
+     */
+    private static final class DecryptedIdentity implements Identity {
+
+        private final String name;
+        private final KeyPair keyPair;
+
+        DecryptedIdentity(String name, String privateKey, byte[] passphrase) throws JSchException {
+            this.name = name;
+            this.keyPair = KeyPair.load(new JSch(), privateKey);
+            if (keyPair.isEncrypted() && !keyPair.decrypt(passphrase)) {
+                keyPair.dispose();
+                throw new JSchException("Invalid passphrase for " + privateKey);
+            }
+        }
+
+        @Override
+        public boolean setPassphrase(byte[] passphrase) {
+            return true; // Already decrypted
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return keyPair.getPublicKeyBlob();
+        }
+
+        @Override
+        public byte[] getSignature(byte[] data) {
+            return keyPair.getSignature(data);
+        }
+
+        @Override
+        public boolean decrypt() {
+            return true; // Already decrypted
+        }
+
+        @Override
+        public String getAlgName() {
+            return keyPair.getKeyType() == KeyPair.RSA ? "ssh-rsa" : "ssh-dss";
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            // Owned by the store, wiped on close
+        }
+
+        /**
+         * Zeroes the passphrase and every key array of the key pair. {@link KeyPair#dispose()}
+         * alone zeroes only the passphrase and private exponent, leaving e.g. the RSA primes.
+         */
+        void wipe() {
+            keyPair.dispose();
+            for (Class<?> type = keyPair.getClass(); type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (field.getType() == byte[].class && !Modifier.isStatic(field.getModifiers())) {
+                        zero(field);
+                    }
+                }
+            }
+        }
+
+        private void zero(Field field) {
+            try {
+                field.setAccessible(true);
+                byte[] bytes = (byte[])field.get(keyPair);
+                if (bytes != null) {
+                    Arrays.fill(bytes, (byte)0);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to wipe " + field, e);
+            }
+        }
+    }
+}
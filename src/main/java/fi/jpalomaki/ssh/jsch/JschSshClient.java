@@ -1,33 +1,78 @@
 package fi.jpalomaki.ssh.jsch;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.jcraft.jsch.*;
 import fi.jpalomaki.ssh.*;
 import fi.jpalomaki.ssh.util.Assert;
 import fi.jpalomaki.ssh.util.BoundedOutputStream;
+import fi.jpalomaki.ssh.util.ByteBufferInputStream;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
 
 /**
  * Jsch-based {@link SshClient} implementation.
  *
  * Only public key authentication is supported.
  *
+ * Commands may also be executed asynchronously, in which case connections are
+ * established by a small fixed pool of connect threads, and command completion
+ * and timeouts are handled by a single shared event loop thread, so that no
+ * thread is held per outstanding command (besides the Jsch session thread).
+ *
  * @author jpalomaki
  */
-public final class JschSshClient implements SshClient {
+public final class JschSshClient implements SshClient, Closeable {
 
-    private static final long CHANNEL_CLOSED_POLL_INTERVAL = 100L;
+    private static final int DEFAULT_CONNECT_THREADS = 8;
+    private static final long DEFAULT_TUNNEL_IDLE_TIMEOUT = 30L * 1000;
+    private static final long DEFAULT_KEEP_ALIVE_INTERVAL = 15L * 1000;
+    static final long IDLE_THREAD_KEEP_ALIVE = 1000L;
     private static final Logger LOGGER = LoggerFactory.getLogger(JschSshClient.class);
 
     private final String privateKey;
-    private final byte[] passphrase;
+    private volatile String passphrase;
+    private volatile IdentityStore identityStore;
+    private final ConcurrentMap<String, Future<IdentityStore>> decryptedKeys = new ConcurrentHashMap<String, Future<IdentityStore>>();
+    private final boolean ownsIdentityStore;
     private final String knownHosts;
     private final Options options;
 
+    private int connectThreads = DEFAULT_CONNECT_THREADS;
+    private ScheduledThreadPoolExecutor eventLoop;
+    private ExecutorService connectPool;
+    private boolean closed = false;
+    private final ConcurrentMap<String, Future<Session>> jumpSessions = new ConcurrentHashMap<String, Future<Session>>();
+    private final ConcurrentMap<String, Future<Tunnel>> tunnels = new ConcurrentHashMap<String, Future<Tunnel>>();
+    private volatile long tunnelIdleTimeout = DEFAULT_TUNNEL_IDLE_TIMEOUT;
+    private volatile AdaptiveAlgorithms adaptiveAlgorithms;
+    private volatile SocketFactory socketFactory;
+    private volatile long keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    private ScheduledFuture<?> keepAlive;
+    private final WarmSessions warmSessions = new WarmSessions(new WarmSessions.Connector() {
+        @Override
+        public Session connect(UserAtHost userAtHost) throws JSchException {
+            return newSessionFor(userAtHost);
+        }
+    }, new Executor() {
+        @Override
+        public void execute(Runnable connect) {
+            connectPool().execute(connect);
+        }
+    });
+
     /**
      * Constructs a new {@link JschSshClient} with a default known hosts
      * file (<code>~/.ssh/known_hosts</code>) and default {@link Options}.
@@ -52,11 +97,174 @@ public final class JschSshClient implements SshClient {
         Assert.hasText(knownHosts, "Path to known hosts file must not be null");
         Assert.notNull(options, "Options must not be null");
         this.privateKey = privateKey;
-        this.passphrase = passphrase != null ? passphrase.getBytes() : null;
+        this.passphrase = passphrase;
+        this.ownsIdentityStore = true;
         this.knownHosts = knownHosts;
         this.options = options;
     }
 
+    /**
+     * Constructs a new {@link JschSshClient} that authenticates with identities
+     * (decrypted private keys) from the given store, routed per user at host.
+     * The store remains owned by the caller, and is not closed with this client.
+     *
+     * @param identityStore Store of identities, not <code>null</code>
+     * @param knownHosts Path to known hosts file, not <code>null</code> or empty
+     * @param options Set of SSH client options, not <code>null</code>
+     */
+    public JschSshClient(IdentityStore identityStore, String knownHosts, Options options) {
+        Assert.notNull(identityStore, "Identity store must not be null");
+        Assert.hasText(knownHosts, "Path to known hosts file must not be null");
+        Assert.notNull(options, "Options must not be null");
+        this.privateKey = null;
+        this.identityStore = identityStore;
+        this.ownsIdentityStore = false;
+        this.knownHosts = knownHosts;
+        this.options = options;
+    }
+
+    /**
+     * Sets the number of threads used to establish connections for asynchronous
+     * execution (default 8). Must be called before the first asynchronous execution.
+     */
+    public synchronized void setConnectThreads(int connectThreads) {
+        Assert.isTrue(connectThreads > 0, "Connect threads must be > 0");
+        Assert.isTrue(connectPool == null, "Connect threads must be set before the first asynchronous execution");
+        this.connectThreads = connectThreads;
+    }
+
+    /**
+     * Sets the time after which unreferenced local port forwarding tunnels are torn
+     * down (default 30s), specified in ms/s/m/h/d, e.g. 5s for five seconds.
+     */
+    public void setTunnelIdleTimeout(String tunnelIdleTimeout) {
+        this.tunnelIdleTimeout = Options.toMillis(tunnelIdleTimeout);
+        Assert.isTrue(this.tunnelIdleTimeout >= 0L, "Tunnel idle timeout must be >= 0 ms");
+    }
+
+    /**
+     * Enables adaptive per-host selection of cipher, MAC and compression (disabled by default),
+     * overriding any such SSH config options. May be shared by many clients.
+     *
+     * @param adaptiveAlgorithms Adaptive algorithms, <code>null</code> to disable
+     */
+    public void setAdaptiveAlgorithms(AdaptiveAlgorithms adaptiveAlgorithms) {
+        this.adaptiveAlgorithms = adaptiveAlgorithms;
+    }
+
+    /**
+     * Sets the factory for sockets to SSH servers (default none, for plain Jsch sockets),
+     * e.g. a {@link RacingSocketFactory}. Not used for connections through jump hosts.
+     *
+     * @param socketFactory Socket factory, <code>null</code> for plain Jsch sockets
+     */
+    public void setSocketFactory(SocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * Sets the interval of keepalive messages on idle warm sessions (default 15s), specified
+     * in ms/s/m/h/d, 0s to disable. Must be called before the first warm-up.
+     */
+    public synchronized void setKeepAliveInterval(String keepAliveInterval) {
+        Assert.isTrue(keepAlive == null, "Keepalive interval must be set before the first warm-up");
+        this.keepAliveInterval = Options.toMillis(keepAliveInterval);
+    }
+
+    /**
+     * Pre-establishes the given number of sessions to each of the given hosts, in parallel
+     * on the connect threads (see {@link #setConnectThreads(int)}), and waits for them.
+     * Commands to these hosts then take an idle warm session instead of connecting, and
+     * hand it back once completed. Pools are replenished in the background (should a session
+     * be lost), and idle warm sessions are kept alive, with keepalives scheduled by the event
+     * loop and sent on the connect threads (see {@link #setKeepAliveInterval(String)}).
+     *
+     * @param userAtHosts Users at hosts to keep warm sessions to, not <code>null</code>
+     * @param sessionsPerHost Number of idle sessions to keep per host, > 0
+     * @return Number of warm sessions established to the given hosts (failed connects are retried in the background)
+     * @throws SshClientException If interrupted
+     */
+    public int warmUp(Collection<UserAtHost> userAtHosts, int sessionsPerHost) throws SshClientException {
+        Assert.notNull(userAtHosts, "Users at hosts must not be null");
+        Assert.isTrue(sessionsPerHost > 0, "Sessions per host must be > 0");
+        startKeepAlive();
+        try {
+            return warmSessions.warmUp(userAtHosts, sessionsPerHost);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SshClientException("Interrupted while warming up sessions", e);
+        }
+    }
+
+    /**
+     * Returns the number of commands that took a warm session.
+     */
+    public long getWarmHitCount() {
+        return warmSessions.hitCount();
+    }
+
+    /**
+     * Returns the number of commands that connected a new session (no warm session available).
+     */
+    public long getWarmMissCount() {
+        return warmSessions.missCount();
+    }
+
+    /**
+     * Returns the ratio of commands that took a warm session to all commands, 0.0 to 1.0.
+     */
+    public double getWarmHitRatio() {
+        long hits = warmSessions.hitCount();
+        long total = hits + warmSessions.missCount();
+        return total > 0L ? (double)hits / total : 0.0;
+    }
+
+    /**
+     * Returns the number of idle warm sessions.
+     */
+    public int getWarmSessionCount() {
+        return warmSessions.idleCount();
+    }
+
+    /**
+     * Returns the number of keepalive messages sent on idle warm sessions.
+     */
+    public long getKeepAliveCount() {
+        return warmSessions.keepAliveCount();
+    }
+
+    /**
+     * Returns the number of warm sessions connected (by warm-ups, and replenishing pools).
+     */
+    public long getWarmConnectCount() {
+        return warmSessions.connectCount();
+    }
+
+    /**
+     * Returns the number of failed warm session connects.
+     */
+    public long getFailedWarmUpCount() {
+        return warmSessions.failedConnectCount();
+    }
+
+    /**
+     * Returns the number of pooled (or opening) local port forwarding tunnels.
+     */
+    int tunnelCount() {
+        return tunnels.size();
+    }
+
+    private synchronized void startKeepAlive() {
+        if (keepAlive == null && keepAliveInterval > 0L) {
+            keepAlive = eventLoop().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    warmSessions.keepAlive();
+                }
+            }, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
     @Override
     public Result executeCommand(String command, UserAtHost userAtHost) throws SshClientException {
         return executeCommand(command, ByteBuffer.wrap(new byte[0]), userAtHost);
@@ -64,71 +272,827 @@ public final class JschSshClient implements SshClient {
 
     @Override
     public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost) throws SshClientException {
-        Assert.hasText(command, "Command must not be null or empty");
-        Assert.notNull(stdin, "Stdin must not be null (but may be empty)");
+        return doExecuteCommand(command, stdin, userAtHost, null, null);
+    }
+
+    /**
+     * <p>Executes the given command as the given user on the given host, passing data
+     * to command standard input from the given byte buffer, and terminates the command
+     * as soon as its output meets the given condition.</p>
+     *
+     * <p>If the condition is met, the execution channel is closed (freeing the remote
+     * process and the connection) and the returned {@link Result} is flagged as
+     * {@link Result#earlyTerminated early terminated}, holding the output captured thus far.
+     * Otherwise, the command runs to completion (or session timeout) as usual.</p>
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHost User at host (and port), not <code>null</code>
+     * @param terminateWhen Condition on output for early termination, not <code>null</code>
+     * @return Result of running the command, never <code>null</code>
+     * @throws SshClientException In case of errors
+     */
+    public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCondition terminateWhen) throws SshClientException {
+        Assert.notNull(terminateWhen, "Termination condition must not be null");
+        return doExecuteCommand(command, stdin, userAtHost, terminateWhen, null);
+    }
+
+    /**
+     * <p>Executes the given command as the given user on the given host, passing data
+     * to command standard input from the given byte buffer, with command standard output
+     * compressed on the remote host and decompressed as it is received.</p>
+     *
+     * <p>Useful for commands with large, compressible output (e.g. logs), over slow links.
+     * Unlike SSH-level compression, this applies to a single execution only, and does
+     * not compress standard input or standard error. See {@link OutputCompression}.</p>
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHost User at host (and port), not <code>null</code>
+     * @param compression Output compression, not <code>null</code>
+     * @return Result of running the command, never <code>null</code>
+     * @throws SshClientException In case of errors, including corrupt compressed output
+     */
+    public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCompression compression) throws SshClientException {
+        Assert.notNull(compression, "Output compression must not be null");
+        Assert.isTrue(!options.allocatePty, "Output compression cannot be used with a pseudo-terminal");
+        return doExecuteCommand(command, stdin, userAtHost, null, compression);
+    }
+
+    /**
+     * <p>Executes the given command asynchronously as the given user on the given host,
+     * passing data to command standard input from the given byte buffer.</p>
+     *
+     * <p>The returned future fails with an {@link ExecutionException} wrapping an
+     * {@link SshClientException} in case of errors. Cancelling the future closes
+     * the execution channel and the session.</p>
+     *
+     * @param command Command to execute, not <code>null</code> or empty
+     * @param stdin Bytes to pass to command standard input, not <code>null</code>
+     * @param userAtHost User at host (and port), not <code>null</code>
+     * @return Future result of running the command, never <code>null</code>
+     */
+    public Future<Result> executeCommandAsync(String command, ByteBuffer stdin, UserAtHost userAtHost) {
+        return doExecuteCommandAsync(command, stdin, userAtHost, null, null);
+    }
+
+    /**
+     * <p>Executes the given command asynchronously as the given user on the given host,
+     * terminating the command as soon as its output meets the given condition.</p>
+     *
+     * @see #executeCommand(String, ByteBuffer, UserAtHost, OutputCondition)
+     * @see #executeCommandAsync(String, ByteBuffer, UserAtHost)
+     */
+    public Future<Result> executeCommandAsync(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCondition terminateWhen) {
+        Assert.notNull(terminateWhen, "Termination condition must not be null");
+        return doExecuteCommandAsync(command, stdin, userAtHost, terminateWhen, null);
+    }
+
+    /**
+     * <p>Forwards a local (loopback) port through the given user at host to the given
+     * remote host and port. Think <code>ssh -L &lt;port&gt;:&lt;remoteHost&gt;:&lt;remotePort&gt; &lt;user&gt;@&lt;host&gt;</code>.</p>
+     *
+     * <p>Tunnels are pooled per user at host and remote host and port: concurrent and
+     * subsequent calls share the same tunnel (and session), which is torn down once it
+     * has not been referenced by any open handle for the tunnel idle timeout.</p>
+     *
+     * @param userAtHost User at host (and port) to tunnel through, not <code>null</code>
+     * @param remoteHost Remote host, as resolved on the SSH server, not <code>null</code> or empty
+     * @param remotePort Remote port, integer between 1 and 65535 (inclusive)
+     * @return Handle to the tunnel, to be closed when no longer needed, never <code>null</code>
+     * @throws SshClientException In case of errors
+     */
+    public LocalPortForward forwardLocalPort(final UserAtHost userAtHost, final String remoteHost, final int remotePort) throws SshClientException {
         Assert.notNull(userAtHost, "User at host must not be null");
-        LOGGER.debug("Executing command '" + command + "' on " + userAtHost +
-                " (stdin = " + (stdin != null ? stdin.array().length : 0) + " bytes)");
-        Session session = null;
+        Assert.hasText(remoteHost, "Remote host must not be null or empty");
+        Assert.isTrue(remotePort >= 1 && remotePort <= 65535, "Remote port must be >= 1 and <= 65535");
+        final String key = toKey(Collections.singletonList(userAtHost)) + remoteHost + ":" + remotePort;
+        while (true) {
+            final Future<Tunnel> future = getOrCreate(tunnels, key, new Callable<Tunnel>() {
+                @Override
+                public Tunnel call() throws JSchException, IOException {
+                    LOGGER.debug("Opening tunnel through " + userAtHost + " to " + remoteHost + ":" + remotePort);
+                    Session session = newSessionFor(userAtHost);
+                    try {
+                        return new Tunnel(session, remoteHost, remotePort, (int)options.connectTimeout);
+                    } catch (IOException e) {
+                        session.disconnect();
+                        throw e;
+                    }
+                }
+            });
+            final Tunnel tunnel;
+            try {
+                tunnel = future.get();
+            } catch (ExecutionException e) {
+                tunnels.remove(key, future);
+                throw new SshClientException("Failed to open tunnel through " + userAtHost + " to " + remoteHost + ":" + remotePort, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SshClientException("Interrupted while opening tunnel through " + userAtHost, e);
+            }
+            if (tunnel.acquire()) {
+                return new LocalPortForward(tunnel, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tunnel.release()) {
+                            scheduleIdleTeardown(key, future, tunnel);
+                        }
+                    }
+                });
+            }
+            tunnels.remove(key, future);
+        }
+    }
+
+    private void scheduleIdleTeardown(final String key, final Future<Tunnel> future, final Tunnel tunnel) {
+        final long idleTimeout = tunnelIdleTimeout;
+        Runnable teardown = new Runnable() {
+            @Override
+            public void run() {
+                if (tunnel.closeIfIdle(idleTimeout)) {
+                    tunnels.remove(key, future);
+                }
+            }
+        };
         try {
-            session = newSessionFor(userAtHost);
-            return doExecuteCommand(command, stdin.array(), session);
-        } catch (JSchException e) {
-            throw new SshClientException("Failed to execute command '" + command + "' on " + userAtHost, e);
-        } finally {
-            if (session != null) {
-                session.disconnect();
+            // Rescheduled on every release, and re-checked when run, so the timeout counts from the last release
+            tunnel.setTeardown(eventLoop().schedule(teardown, idleTimeout, TimeUnit.MILLISECONDS));
+        } catch (RuntimeException e) {
+            tunnel.close(); // Client closed
+            tunnels.remove(key, future);
+        }
+    }
+
+    /**
+     * Shuts down the connect threads and the event loop of this client, failing
+     * outstanding asynchronous executions, disconnects warm and shared jump host sessions and
+     * wipes the decrypted private key (unless given in an {@link IdentityStore}).
+     * The client may not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (connectPool != null) {
+            connectPool.shutdownNow();
+        }
+        if (eventLoop != null) {
+            eventLoop.shutdownNow();
+        }
+        for (Future<Tunnel> tunnel : tunnels.values()) {
+            try {
+                if (tunnel.isDone()) {
+                    tunnel.get().close();
+                }
+            } catch (Exception e) {
+                // Ignore, nothing to close
             }
         }
+        tunnels.clear();
+        warmSessions.close();
+        for (Future<Session> jumpSession : jumpSessions.values()) {
+            disconnect(jumpSession);
+        }
+        jumpSessions.clear();
+        if (ownsIdentityStore && identityStore != null) {
+            identityStore.close();
+        }
+    }
+
+    private Result doExecuteCommand(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCondition terminateWhen, OutputCompression compression) throws SshClientException {
+        Execution execution = newExecution(command, stdin, userAtHost, terminateWhen, compression);
+        execution.start();
+        return execution.awaitResult();
+    }
+
+    private Future<Result> doExecuteCommandAsync(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCondition terminateWhen, OutputCompression compression) {
+        final Execution execution = newExecution(command, stdin, userAtHost, terminateWhen, compression);
+        connectPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                execution.start();
+            }
+        });
+        return execution;
+    }
+
+    /**
+     * Executes the given command, streaming command standard input from the given stream
+     * (e.g. to follow progress), which is closed once the command completes. Should reading
+     * the stream fail, standard input is ended there, and the execution fails (whatever the
+     * exit code), so commands must not act on partial input before it ends.
+     */
+    Result executeCommand(String command, InputStream stdin, UserAtHost userAtHost) throws SshClientException {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(stdin, "Stdin must not be null");
+        Assert.notNull(userAtHost, "User at host must not be null");
+        LOGGER.debug("Executing command '" + command + "' on " + userAtHost + " (stdin streamed)");
+        Execution execution = new Execution(command, stdin, userAtHost, null, null);
+        execution.start();
+        return execution.awaitResult();
+    }
+
+    private Execution newExecution(String command, ByteBuffer stdin, UserAtHost userAtHost, OutputCondition terminateWhen, OutputCompression compression) {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(stdin, "Stdin must not be null (but may be empty)");
+        Assert.notNull(userAtHost, "User at host must not be null");
+        LOGGER.debug("Executing command '" + command + "' on " + userAtHost + " (stdin = " + stdin.remaining() + " bytes)");
+        InputStream stdinStream = stdin.hasRemaining() ? new ByteBufferInputStream(stdin.duplicate()) : null;
+        return new Execution(command, stdinStream, userAtHost, terminateWhen, compression);
     }
 
     private Session newSessionFor(UserAtHost userAtHost) throws JSchException {
+        return newSessionVia(options.jumpHostsFor(userAtHost), userAtHost);
+    }
+
+    /**
+     * Connects a new session to the given target, through the given chain of jump hosts.
+     */
+    private Session newSessionVia(List<UserAtHost> jumpHosts, UserAtHost userAtHost) throws JSchException {
         JSch jsch = new JSch();
         jsch.setKnownHosts(knownHosts);
-        jsch.addIdentity(privateKey, passphrase);
+        jsch.addIdentity(identityStore().identityFor(userAtHost), null);
         Session session = jsch.getSession(userAtHost.user, userAtHost.host, userAtHost.port);
         for (Map.Entry<String, String> entry : options.sshConfig.entrySet()) {
             session.setConfig(entry.getKey(), entry.getValue());
         }
         session.setConfig("PreferredAuthentications", "publickey");
+        AdaptiveAlgorithms algorithms = adaptiveAlgorithms;
+        if (algorithms != null) {
+            algorithms.apply(session, userAtHost);
+        }
+        SocketFactory factory = socketFactory;
+        if (!jumpHosts.isEmpty()) {
+            session.setProxy(new DirectTcpipProxy(jumpSessionFor(jumpHosts)));
+        } else if (factory != null) {
+            session.setSocketFactory(factory);
+        }
         session.connect((int)options.connectTimeout);
         return session;
     }
 
-    private Result doExecuteCommand(String command, byte[] bytesToStdin, Session session) throws JSchException, SshClientException {
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-        ByteArrayInputStream stdin = new ByteArrayInputStream(bytesToStdin);
-        ChannelExec executionChannel = (ChannelExec)session.openChannel("exec");
-        executionChannel.setCommand(command);
-        if (stdin.available() > 0) {
-            executionChannel.setInputStream(stdin);
+    /**
+     * Returns the identity store, loading and decrypting the private key given
+     * at construction on first use (once, as opposed to once per session). The key
+     * is decrypted outside the client lock, concurrent callers wait for the same
+     * decryption, and a failed decryption is retried by the next caller.
+     */
+    private IdentityStore identityStore() throws SshClientException {
+        IdentityStore store = identityStore;
+        if (store != null) {
+            return store;
+        }
+        Future<IdentityStore> future = getOrCreate(decryptedKeys, privateKey, new Callable<IdentityStore>() {
+            @Override
+            public IdentityStore call() throws SshClientException {
+                IdentityStore store = new IdentityStore();
+                store.addIdentity(privateKey, privateKey, passphrase);
+                synchronized (JschSshClient.this) { // So that close() either sees the store, or the store sees close()
+                    if (closed) {
+                        store.close();
+                        throw new SshClientException("Client has been closed");
+                    }
+                    identityStore = store;
+                    passphrase = null;
+                }
+                return store;
+            }
+        });
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            decryptedKeys.remove(privateKey, future);
+            if (e.getCause() instanceof SshClientException) {
+                throw (SshClientException)e.getCause();
+            }
+            throw new SshClientException("Failed to load private key " + privateKey, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SshClientException("Interrupted while loading private key " + privateKey, e);
         }
-        executionChannel.setOutputStream(new BoundedOutputStream(options.maxStdoutBytes, stdout, false));
-        executionChannel.setErrStream(new BoundedOutputStream(options.maxStderrBytes, stderr, false));
-        executionChannel.setPty(options.allocatePty);
-        executionChannel.connect();
-        waitUntilChannelClosed(executionChannel);
-        return new Result(executionChannel.getExitStatus(), stdout.toByteArray(), stderr.toByteArray());
     }
 
-    private void waitUntilChannelClosed(ChannelExec executionChannel) {
-        long waitTimeThusFar = 0L;
-        long sessionTimeout = options.sessionTimeout;
-        do {
+    /**
+     * Returns a connected session to the last of the given jump hosts, shared by all
+     * concurrent connections through the same chain, so that only one handshake is
+     * made per chain (unless the shared session gets disconnected).
+     */
+    private Session jumpSessionFor(final List<UserAtHost> jumpHosts) throws JSchException {
+        final int last = jumpHosts.size() - 1;
+        String key = toKey(jumpHosts);
+        while (true) {
+            Future<Session> jumpSession = getOrCreate(jumpSessions, key, new Callable<Session>() {
+                @Override
+                public Session call() throws JSchException {
+                    LOGGER.debug("Connecting to jump host " + jumpHosts.get(last));
+                    return newSessionVia(jumpHosts.subList(0, last), jumpHosts.get(last));
+                }
+            });
             try {
-                Thread.sleep(CHANNEL_CLOSED_POLL_INTERVAL);
-                waitTimeThusFar += CHANNEL_CLOSED_POLL_INTERVAL;
-                if (sessionTimeout > 0L && waitTimeThusFar > sessionTimeout) {
+                Session session = jumpSession.get();
+                if (session.isConnected()) {
+                    return session;
+                }
+                jumpSessions.remove(key, jumpSession);
+            } catch (ExecutionException e) {
+                jumpSessions.remove(key, jumpSession);
+                if (e.getCause() instanceof JSchException) {
+                    throw (JSchException)e.getCause();
+                }
+                throw new SshClientException("Failed to connect to jump host " + jumpHosts.get(last), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SshClientException("Interrupted while connecting to jump host " + jumpHosts.get(last), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the value memoized in the given map for the given key, creating it on
+     * the calling thread if absent, so that concurrent callers share a single creation
+     * (without holding a lock while connecting).
+     */
+    private static <T> Future<T> getOrCreate(ConcurrentMap<String, Future<T>> map, String key, Callable<T> factory) {
+        Future<T> future = map.get(key);
+        if (future == null) {
+            FutureTask<T> create = new FutureTask<T>(factory);
+            future = map.putIfAbsent(key, create);
+            if (future == null) {
+                future = create;
+                create.run();
+            }
+        }
+        return future;
+    }
+
+    private static String toKey(List<UserAtHost> userAtHosts) {
+        StringBuilder key = new StringBuilder();
+        for (UserAtHost userAtHost : userAtHosts) {
+            key.append(userAtHost.user).append('@').append(userAtHost.host).append(':').append(userAtHost.port).append(',');
+        }
+        return key.toString();
+    }
+
+    private static void disconnect(Future<Session> session) {
+        try {
+            if (session.isDone()) {
+                session.get().disconnect();
+            }
+        } catch (Exception e) {
+            // Ignore, nothing to disconnect
+        }
+    }
+
+    private synchronized ScheduledExecutorService eventLoop() {
+        Assert.isTrue(!closed, "Client has been closed");
+        if (eventLoop == null) {
+            eventLoop = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("jsch-event-loop"));
+            eventLoop.setRemoveOnCancelPolicy(true);
+            eventLoop.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+            eventLoop.allowCoreThreadTimeOut(true); // So that idle, unclosed clients do not pin a thread each
+        }
+        return eventLoop;
+    }
+
+    private synchronized ExecutorService connectPool() {
+        Assert.isTrue(!closed, "Client has been closed");
+        if (connectPool == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(connectThreads, connectThreads, IDLE_THREAD_KEEP_ALIVE,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("jsch-connect"));
+            pool.allowCoreThreadTimeOut(true);
+            connectPool = pool;
+        }
+        return connectPool;
+    }
+
+    /**
+     * Reason for terminating an execution before the command exits on its own.
+     */
+    private enum Termination {
+        NONE, CONDITION_MET, TIMEOUT, CANCELLED
+    }
+
+    /**
+     * A single command execution, completed by the event loop when Jsch closes
+     * the execution channel (Jsch closes the stderr sink when the channel closes,
+     * which happens after the exit status has been received).
+     */
+    private final class Execution implements Future<Result> {
+
+        private final String command;
+        private final FailureTrackingInputStream stdin;
+        private final UserAtHost userAtHost;
+        private final OutputCondition terminateWhen;
+        private final OutputCompression compression;
+        private volatile OutputCompression.Decoder decoder;
+        private final AdaptiveAlgorithms algorithms = adaptiveAlgorithms;
+        private final ThroughputOutputStream throughput = new ThroughputOutputStream();
+        private volatile long handshakeNanos;
+        private volatile boolean warm = false;
+        private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        private final AtomicReference<Termination> termination = new AtomicReference<Termination>(Termination.NONE);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+        private volatile Session session;
+        private volatile ChannelExec channel;
+        private volatile ScheduledFuture<?> timeout;
+        private volatile Result result;
+        private volatile RuntimeException failure;
+
+        Execution(String command, InputStream stdin, UserAtHost userAtHost, OutputCondition terminateWhen, OutputCompression compression) {
+            this.command = command;
+            this.stdin = stdin != null ? new FailureTrackingInputStream(stdin) : null;
+            this.userAtHost = userAtHost;
+            this.terminateWhen = terminateWhen;
+            this.compression = compression;
+        }
+
+        /**
+         * Connects and starts the command, returning without waiting for it to complete.
+         */
+        void start() {
+            try {
+                if (termination.get() == Termination.NONE) {
+                    WarmSessions.WarmSession warmSession = warmSessions.take(userAtHost);
+                    if (warmSession != null) {
+                        session = warmSession.session;
+                        handshakeNanos = warmSession.handshakeNanos;
+                        warm = true;
+                    } else {
+                        long connectStart = System.nanoTime();
+                        session = newSessionFor(userAtHost);
+                        handshakeNanos = System.nanoTime() - connectStart;
+                    }
+                    channel = openChannel();
+                    channel.connect();
+                    if (options.sessionTimeout > 0L) {
+                        timeout = eventLoop().schedule(terminateTask(Termination.TIMEOUT), options.sessionTimeout, TimeUnit.MILLISECONDS);
+                        if (cleanedUp.get()) { // Completed before the timeout was scheduled
+                            timeout.cancel(false);
+                        }
+                    }
+                    if (termination.get() != Termination.NONE) {
+                        channel.disconnect();
+                    }
+                } else {
+                    complete();
+                }
+            } catch (JSchException e) {
+                fail(new SshClientException("Failed to execute command '" + command + "' on " + userAtHost, e));
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private ChannelExec openChannel() throws JSchException {
+            OutputStream stdoutSink = new BoundedOutputStream(options.maxStdoutBytes, stdout, false);
+            OutputStream stderrSink = new BoundedOutputStream(options.maxStderrBytes, stderr, false);
+            if (terminateWhen != null) {
+                Runnable onConditionMet = new Runnable() {
+                    @Override
+                    public void run() {
+                        eventLoop().execute(terminateTask(Termination.CONDITION_MET));
+                    }
+                };
+                stdoutSink = terminateWhen.watch(stdoutSink, OutputCondition.Source.STDOUT, onConditionMet);
+                stderrSink = terminateWhen.watch(stderrSink, OutputCondition.Source.STDERR, onConditionMet);
+            }
+            if (compression != null) {
+                decoder = compression.decoder(stdoutSink);
+                stdoutSink = decoder;
+            }
+            if (algorithms != null) {
+                stdoutSink = throughput.measure(stdoutSink);
+                stderrSink = throughput.measure(stderrSink);
+            }
+            ChannelExec executionChannel = (ChannelExec)session.openChannel("exec");
+            executionChannel.setCommand(compression != null ? compression.wrap(command) : command);
+            if (stdin != null) {
+                executionChannel.setInputStream(stdin);
+            }
+            executionChannel.setOutputStream(stdoutSink);
+            executionChannel.setErrStream(new ClosedSignalOutputStream(stderrSink, new Runnable() {
+                @Override
+                public void run() {
+                    onChannelClosed();
+                }
+            }));
+            executionChannel.setPty(options.allocatePty);
+            return executionChannel;
+        }
+
+        private Runnable terminateTask(final Termination reason) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    terminate(reason);
+                }
+            };
+        }
+
+        private void terminate(Termination reason) {
+            if (termination.compareAndSet(Termination.NONE, reason)) {
+                disconnectChannel();
+            }
+        }
+
+        private void disconnectChannel() {
+            ChannelExec executionChannel = channel;
+            if (executionChannel != null) {
+                executionChannel.disconnect();
+            }
+        }
+
+        private void onChannelClosed() {
+            try {
+                eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete();
+                    }
+                });
+            } catch (RuntimeException e) {
+                complete(); // Client closed, or event loop otherwise unavailable
+            }
+        }
+
+        private void complete() {
+            Termination reason = termination.get();
+            cleanUp(reason == Termination.NONE || reason == Termination.CONDITION_MET);
+            switch (reason) {
+                case TIMEOUT:
+                    finish(null, new SessionTimeoutException(options.sessionTimeout));
+                    break;
+                case CANCELLED:
+                    finish(null, cancelled());
                     break;
+                case NONE:
+                    IOException stdinFailure = stdin != null ? stdin.failure() : null;
+                    if (stdinFailure != null) {
+                        finish(null, new SshClientException("Failed to read standard input of command '" + command + "' on " + userAtHost, stdinFailure));
+                        break;
+                    }
+                    IOException decompressionFailure = decoder != null && channel != null ? decoder.failure() : null;
+                    if (decompressionFailure != null) {
+                        finish(null, new SshClientException("Failed to decompress output of command '" + command + "' on " + userAtHost, decompressionFailure));
+                        break;
+                    }
+                    // Fall through
+                default:
+                    boolean earlyTerminated = reason == Termination.CONDITION_MET;
+                    int exitCode = channel != null ? channel.getExitStatus() : -1;
+                    if (algorithms != null && channel != null) {
+                        algorithms.record(session, userAtHost, handshakeNanos, throughput.bytes(), throughput.nanos());
+                    }
+                    finish(new Result(exitCode, stdout.toByteArray(), stderr.toByteArray(), earlyTerminated), null);
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            cleanUp(false);
+            finish(null, e);
+        }
+
+        private SshClientException cancelled() {
+            return new SshClientException("Command '" + command + "' on " + userAtHost + " was cancelled");
+        }
+
+        /**
+         * Publishes the result or failure of this execution, unless already published
+         * (i.e. the execution was cancelled before completing). Returns true if published.
+         */
+        private boolean finish(Result result, RuntimeException failure) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            this.result = result;
+            this.failure = failure;
+            done.countDown();
+            return true;
+        }
+
+        /**
+         * Cancels the session timeout, and hands the session back to the warm sessions if
+         * reusable (the command completed on its own or met its condition), otherwise disconnects
+         * it (reporting it lost, if taken from the warm sessions).
+         */
+        private void cleanUp(boolean reusable) {
+            if (!cleanedUp.compareAndSet(false, true)) {
+                return; // E.g. failed to start, but the channel closed nonetheless
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (session == null) {
+                return;
+            }
+            if (reusable && channel != null) {
+                if (!warmSessions.release(userAtHost, session, handshakeNanos, warm)) {
+                    session.disconnect();
                 }
+            } else {
+                session.disconnect();
+                if (warm) {
+                    warmSessions.lost(userAtHost);
+                }
+            }
+        }
+
+        /**
+         * Waits for the command to complete, cancelling it if the current thread is interrupted.
+         */
+        Result awaitResult() throws SshClientException {
+            try {
+                done.await();
             } catch (InterruptedException e) {
-                // Ignore
+                cancel(true);
+                Thread.currentThread().interrupt();
+                throw new SshClientException("Interrupted while executing command '" + command + "' on " + userAtHost, e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        /**
+         * Completes this execution as cancelled right away, tearing down the channel (and
+         * with it the session) in the background.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone() || !termination.compareAndSet(Termination.NONE, Termination.CANCELLED)) {
+                return false;
+            }
+            boolean cancelled = finish(null, cancelled());
+            Runnable teardown = new Runnable() {
+                @Override
+                public void run() {
+                    disconnectChannel(); // Completes the execution (and cleans up) once the channel closes
+                }
+            };
+            try {
+                connectPool().execute(teardown);
+            } catch (RuntimeException e) {
+                teardown.run(); // Client closed
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isDone() && termination.get() == Termination.CANCELLED && result == null;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0L;
+        }
+
+        @Override
+        public Result get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private Result report() throws ExecutionException {
+            if (result != null) {
+                return result;
+            }
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            throw new ExecutionException(failure);
+        }
+    }
+
+    /**
+     * Measures bytes written to the streams it decorates, and the time from the first
+     * write to the last (across all of them).
+     */
+    private static final class ThroughputOutputStream {
+
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long firstWrite = 0L;
+        private volatile long lastWrite = 0L;
+
+        OutputStream measure(final OutputStream sink) {
+            return new FilterOutputStream(sink) {
+                @Override
+                public void write(int b) throws IOException {
+                    sink.write(b);
+                    written(1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    sink.write(bytes, offset, length);
+                    written(length);
+                }
+            };
+        }
+
+        private void written(int count) {
+            long now = System.nanoTime();
+            if (bytes.getAndAdd(count) == 0L) {
+                firstWrite = now;
+            }
+            lastWrite = now;
+        }
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        long nanos() {
+            return bytes.get() > 0L ? lastWrite - firstWrite : 0L;
+        }
+    }
+
+    /**
+     * An {@link InputStream} decorator that ends the stream on a read failure, recording
+     * the failure. Jsch silently stops reading standard input on a failure, without sending
+     * EOF, which would leave the remote command waiting for input indefinitely.
+     */
+    private static final class FailureTrackingInputStream extends FilterInputStream {
+
+        private volatile IOException failure;
+
+        FailureTrackingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return failure == null ? super.read() : -1;
+            } catch (IOException e) {
+                failure = e;
+                return -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                return failure == null ? super.read(bytes, offset, length) : -1;
+            } catch (IOException e) {
+                failure = e;
+                return -1;
+            }
+        }
+
+        IOException failure() {
+            return failure;
+        }
+    }
+
+    /**
+     * An {@link OutputStream} decorator that runs a callback when closed.
+     */
+    private static final class ClosedSignalOutputStream extends OutputStream {
+
+        private final OutputStream sink;
+        private final Runnable onClose;
+        private boolean closed = false;
+
+        ClosedSignalOutputStream(OutputStream sink, Runnable onClose) {
+            this.sink = sink;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            sink.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            sink.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                sink.close();
+                onClose.run();
             }
-        } while (!executionChannel.isClosed());
-        if (!executionChannel.isClosed()) {
-            executionChannel.disconnect();
-            throw new SessionTimeoutException(sessionTimeout);
         }
     }
 
@@ -138,11 +1102,16 @@ public final class JschSshClient implements SshClient {
      * Note: Session timeout is a hard timeout to limit the duration of the
      * SSH session and it is enforced regardless of whether the session (or
      * connection) is idle or not.
+     *
+     * Jump hosts may be specified with the <code>ProxyJump</code> SSH config option,
+     * as in OpenSSH, e.g. "ProxyJump=user@bastion:2222,inner-bastion". Jump hosts
+     * without a user are connected to as the target user.
      */
     public static class Options {
 
         private static final Map<String, Long> TIME_UNITS = timeUnits();
         private static final Map<String, Long> BYTE_UNITS = byteUnits();
+        private static final String PROXY_JUMP = "ProxyJump";
 
         final long connectTimeout;
         final long sessionTimeout;
@@ -150,6 +1119,7 @@ public final class JschSshClient implements SshClient {
         final long maxStderrBytes;
         final Map<String, String> sshConfig;
         final boolean allocatePty;
+        final List<String> jumpHosts;
 
         /**
          * Constructs default options (5s, 0s, 1M, 1M, StrictHostKeyChecking=yes, false).
@@ -187,12 +1157,54 @@ public final class JschSshClient implements SshClient {
             this.sessionTimeout = sessionTimeout;
             this.maxStdoutBytes = maxStdoutBytes;
             this.maxStderrBytes = maxStderrBytes;
+            this.jumpHosts = toJumpHosts(sshConfig != null ? sshConfig.remove(PROXY_JUMP) : null);
             this.sshConfig = sshConfig != null ?
                     Collections.unmodifiableMap(sshConfig) : Collections.<String, String>emptyMap();
             this.allocatePty = allocatePty;
         }
 
-        private static long toMillis(String timeout) {
+        /**
+         * Returns the chain of jump hosts to the given target, first hop first (may be empty).
+         */
+        List<UserAtHost> jumpHostsFor(UserAtHost target) {
+            List<UserAtHost> chain = new ArrayList<UserAtHost>(jumpHosts.size());
+            for (String jumpHost : jumpHosts) {
+                chain.add(toUserAtHost(jumpHost, target.user));
+            }
+            return chain;
+        }
+
+        private static List<String> toJumpHosts(String proxyJump) {
+            List<String> jumpHosts = new ArrayList<String>();
+            if (proxyJump != null && !proxyJump.equalsIgnoreCase("none")) {
+                for (String jumpHost : proxyJump.split(",")) {
+                    toUserAtHost(jumpHost.trim(), "validation");
+                    jumpHosts.add(jumpHost.trim());
+                }
+            }
+            return Collections.unmodifiableList(jumpHosts);
+        }
+
+        private static UserAtHost toUserAtHost(String jumpHost, String defaultUser) {
+            String user = defaultUser;
+            String hostAndPort = jumpHost;
+            int at = jumpHost.lastIndexOf('@');
+            if (at >= 0) {
+                user = jumpHost.substring(0, at);
+                hostAndPort = jumpHost.substring(at + 1);
+            }
+            try {
+                int colon = hostAndPort.lastIndexOf(':');
+                if (colon >= 0) {
+                    return new UserAtHost(user, hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+                }
+                return new UserAtHost(user, hostAndPort);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid jump host: " + jumpHost, e);
+            }
+        }
+
+        static long toMillis(String timeout) {
             Assert.hasText(timeout, "Timeout must not be null or empty");
             for (Map.Entry<String, Long> entry : TIME_UNITS.entrySet()) {
                 String unit = entry.getKey();
@@ -0,0 +1,83 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.Closeable;
+
+/**
+ * Handle to a (shared) local port forwarding tunnel, see
+ * {@link JschSshClient#forwardLocalPort(fi.jpalomaki.ssh.UserAtHost, String, int)}.
+ *
+ * Connect to <code>localhost:&lt;localPort&gt;</code> to reach the remote host and port.
+ * Closing the handle releases it; the tunnel itself is torn down once it has not
+ * been referenced for the tunnel idle timeout. Counters are per tunnel, i.e. shared
+ * by all handles to the same tunnel. Thread-safe.
+ *
+ * @author jpalomaki
+ */
+public final class LocalPortForward implements Closeable {
+
+    private final Tunnel tunnel;
+    private final Runnable onClose;
+    private boolean closed = false;
+
+    LocalPortForward(Tunnel tunnel, Runnable onClose) {
+        this.tunnel = tunnel;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Returns the bound local (loopback) port.
+     */
+    public int getLocalPort() {
+        return tunnel.localPort();
+    }
+
+    /**
+     * Returns the number of bytes sent to the remote end through the tunnel.
+     */
+    public long getBytesSent() {
+        return tunnel.bytesSent.get();
+    }
+
+    /**
+     * Returns the number of bytes received from the remote end through the tunnel.
+     */
+    public long getBytesReceived() {
+        return tunnel.bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of connections forwarded through the tunnel thus far.
+     */
+    public long getConnectionCount() {
+        return tunnel.connectionCount.get();
+    }
+
+    /**
+     * Returns the number of currently open connections through the tunnel.
+     */
+    public int getActiveConnectionCount() {
+        return tunnel.activeConnectionCount.get();
+    }
+
+    /**
+     * Releases this handle (idempotent).
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        onClose.run();
+    }
+
+    @Override
+    public String toString() {
+        String hashCode = Integer.toHexString(hashCode());
+        String instance = getClass().getSimpleName() + "@" + hashCode;
+        return String.format("%s [localPort=%s, bytesSent=%s, bytesReceived=%s, connectionCount=%s]",
+                instance, getLocalPort(), getBytesSent(), getBytesReceived(), getConnectionCount());
+    }
+}
@@ -0,0 +1,178 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.GunzipOutputStream;
+
+/**
+ * Per-execution compression of command standard output. Thread-safe.
+ *
+ * The command is wrapped so that its standard output is piped through <code>gzip</code>
+ * on the remote host (if available, otherwise it is passed through as is), while its
+ * standard error and exit status are preserved. The compressed output is decompressed
+ * as it streams in, so the {@link fi.jpalomaki.ssh.Result} holds the original output.
+ *
+ * The wrapped command is run by <code>sh</code>, and cannot be used with a pseudo-terminal.
+ *
+ * @author jpalomaki
+ */
+public final class OutputCompression {
+
+    private static final int COMPRESSED = 'z';
+    private static final int PLAIN = 'p';
+
+    private final int level;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecompressed = new AtomicLong();
+
+    private OutputCompression(int level) {
+        Assert.isTrue(level >= 1 && level <= 9, "Compression level must be >= 1 and <= 9");
+        this.level = level;
+    }
+
+    /**
+     * Returns gzip output compression with the fastest compression level (1).
+     */
+    public static OutputCompression gzip() {
+        return gzip(1);
+    }
+
+    /**
+     * Returns gzip output compression with the given compression level (1 to 9).
+     */
+    public static OutputCompression gzip(int level) {
+        return new OutputCompression(level);
+    }
+
+    /**
+     * Returns the total number of (compressed) standard output bytes received, over all executions.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the total number of standard output bytes after decompression, over all executions.
+     */
+    public long getBytesDecompressed() {
+        return bytesDecompressed.get();
+    }
+
+    /**
+     * Returns the given command wrapped in a shell script that compresses its standard output.
+     *
+     * The script writes a marker byte telling whether compression is used, then runs the command
+     * (in a subshell, so that it may call exit) with its standard output piped to the compressor,
+     * passing the exit status of the command out of the pipeline through file descriptor 4.
+     */
+    String wrap(String command) {
+        String script = "if command -v gzip >/dev/null 2>&1; then printf z; z='gzip -c -" + level + "'; else printf p; z=cat; fi\n" +
+                "exec 3>&1\n" +
+                "s=$( { { ( " + command + "\n) 3>&- 4>&-; echo $? >&4; } | $z >&3 3>&- 4>&-; } 4>&1 )\n" +
+                "exit ${s:-255}";
+        return "sh -c '" + script.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Returns a stream that decompresses (wrapped command) standard output to the given sink.
+     */
+    Decoder decoder(OutputStream sink) {
+        return new Decoder(sink);
+    }
+
+    /**
+     * Decompresses standard output of a wrapped command. Never fails on close, so that
+     * Jsch closes the other channel streams too: check {@link #failure()} instead.
+     */
+    final class Decoder extends OutputStream {
+
+        private final OutputStream sink;
+        private OutputStream decompressor;
+        private IOException failure;
+
+        private Decoder(final OutputStream sink) {
+            this.sink = new FilterOutputStream(sink) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                    bytesDecompressed.addAndGet(length);
+                }
+            };
+        }
+
+        /**
+         * Returns the reason decompression failed or was left incomplete, or <code>null</code> if it succeeded.
+         */
+        IOException failure() {
+            if (failure != null) {
+                return failure;
+            }
+            if (decompressor == null) {
+                return new IOException("No output from wrapped command");
+            }
+            if (decompressor instanceof GunzipOutputStream && !((GunzipOutputStream)decompressor).isComplete()) {
+                return new IOException("Truncated gzip data");
+            }
+            return null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            bytesReceived.addAndGet(length);
+            try {
+                if (length == 0) {
+                    return;
+                }
+                if (decompressor == null) {
+                    decompressor = newDecompressor(bytes[offset]);
+                    offset++;
+                    length--;
+                }
+                decompressor.write(bytes, offset, length);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (decompressor != null) {
+                    decompressor.close();
+                } else {
+                    sink.close();
+                }
+            } catch (IOException e) {
+                // Ignore, output already captured
+            }
+        }
+
+        private OutputStream newDecompressor(int marker) throws IOException {
+            switch (marker) {
+                case COMPRESSED:
+                    return new GunzipOutputStream(sink);
+                case PLAIN:
+                    return sink;
+                default:
+                    throw new IOException("Unexpected output from wrapped command");
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Condition on command output, used to terminate a command early. Immutable.
+ *
+ * Think <code>ssh user@host tail -F app.log | grep -m 1 Started</code>.
+ *
+ * Conditions are evaluated incrementally as output arrives, separately
+ * for each watched stream (stdout by default, see {@link #in(Source)}).
+ *
+ * @author jpalomaki
+ */
+public abstract class OutputCondition {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    /**
+     * Output stream(s) to watch.
+     */
+    public enum Source {
+        STDOUT, STDERR, ANY
+    }
+
+    final Source source;
+
+    OutputCondition(Source source) {
+        Assert.notNull(source, "Source must not be null");
+        this.source = source;
+    }
+
+    /**
+     * Returns a condition that is met when a line of output (decoded as UTF-8)
+     * contains a match for the given regular expression. Only complete lines are
+     * matched, and lines longer than 64 KiB are truncated for matching purposes.
+     *
+     * @param regex Regular expression, not <code>null</code> or empty
+     */
+    public static OutputCondition matches(String regex) {
+        Assert.hasText(regex, "Regex must not be null or empty");
+        return new RegexCondition(Source.STDOUT, Pattern.compile(regex));
+    }
+
+    /**
+     * Returns a condition that is met when output contains the given byte sequence.
+     *
+     * @param bytes Byte sequence, not <code>null</code> or empty
+     */
+    public static OutputCondition contains(byte[] bytes) {
+        Assert.isTrue(bytes != null && bytes.length > 0, "Bytes must not be null or empty");
+        return new BytesCondition(Source.STDOUT, bytes.clone());
+    }
+
+    /**
+     * Returns a condition that is met when output contains the given number of lines.
+     *
+     * @param count Line count, > 0
+     */
+    public static OutputCondition lines(int count) {
+        Assert.isTrue(count > 0, "Line count must be > 0");
+        return new LineCountCondition(Source.STDOUT, count);
+    }
+
+    /**
+     * Returns a copy of this condition, watching the given output stream(s).
+     *
+     * @param source Output stream(s) to watch, not <code>null</code>
+     */
+    public abstract OutputCondition in(Source source);
+
+    /**
+     * Returns a new matcher, holding the evaluation state for a single stream.
+     */
+    abstract Matcher newMatcher();
+
+    /**
+     * Decorates the given sink so that the given callback is run (once) when
+     * this condition is met, if this condition watches the given stream.
+     */
+    OutputStream watch(OutputStream sink, Source stream, Runnable onMet) {
+        if (source == Source.ANY || source == stream) {
+            return new WatchingOutputStream(sink, newMatcher(), onMet);
+        }
+        return sink;
+    }
+
+    /**
+     * Incremental matcher for a single stream. Not thread-safe.
+     */
+    abstract static class Matcher {
+
+        /**
+         * Consumes the given bytes, returning true if the condition is met.
+         */
+        abstract boolean update(byte[] bytes, int offset, int length);
+    }
+
+    private static final class RegexCondition extends OutputCondition {
+
+        private final Pattern pattern;
+
+        RegexCondition(Source source, Pattern pattern) {
+            super(source);
+            this.pattern = pattern;
+        }
+
+        @Override
+        public OutputCondition in(Source source) {
+            return new RegexCondition(source, pattern);
+        }
+
+        @Override
+        Matcher newMatcher() {
+            return new Matcher() {
+
+                private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+                @Override
+                boolean update(byte[] bytes, int offset, int length) {
+                    int start = offset;
+                    for (int i = offset; i < offset + length; i++) {
+                        if (bytes[i] == '\n') {
+                            append(bytes, start, i - start);
+                            start = i + 1;
+                            if (lineMatches()) {
+                                return true;
+                            }
+                        }
+                    }
+                    append(bytes, start, offset + length - start);
+                    return false;
+                }
+
+                private void append(byte[] bytes, int offset, int length) {
+                    int room = MAX_LINE_BYTES - line.size();
+                    line.write(bytes, offset, Math.min(room, length));
+                }
+
+                private boolean lineMatches() {
+                    String text = new String(line.toByteArray(), UTF_8);
+                    line.reset();
+                    if (text.endsWith("\r")) {
+                        text = text.substring(0, text.length() - 1);
+                    }
+                    return pattern.matcher(text).find();
+                }
+            };
+        }
+    }
+
+    private static final class BytesCondition extends OutputCondition {
+
+        private final byte[] bytes;
+        private final int[] failure;
+
+        BytesCondition(Source source, byte[] bytes) {
+            super(source);
+            this.bytes = bytes;
+            this.failure = failureFunction(bytes);
+        }
+
+        @Override
+        public OutputCondition in(Source source) {
+            return new BytesCondition(source, bytes);
+        }
+
+        @Override
+        Matcher newMatcher() {
+            return new Matcher() {
+
+                private int matched = 0;
+
+                @Override
+                boolean update(byte[] input, int offset, int length) {
+                    for (int i = offset; i < offset + length; i++) {
+                        while (matched > 0 && input[i] != bytes[matched]) {
+                            matched = failure[matched - 1];
+                        }
+                        if (input[i] == bytes[matched]) {
+                            matched++;
+                        }
+                        if (matched == bytes.length) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Knuth-Morris-Pratt failure function, so that a match spanning
+         * several writes is found without buffering previous output.
+         */
+        private static int[] failureFunction(byte[] pattern) {
+            int[] failure = new int[pattern.length];
+            int k = 0;
+            for (int i = 1; i < pattern.length; i++) {
+                while (k > 0 && pattern[i] != pattern[k]) {
+                    k = failure[k - 1];
+                }
+                if (pattern[i] == pattern[k]) {
+                    k++;
+                }
+                failure[i] = k;
+            }
+            return failure;
+        }
+    }
+
+    private static final class LineCountCondition extends OutputCondition {
+
+        private final int count;
+
+        LineCountCondition(Source source, int count) {
+            super(source);
+            this.count = count;
+        }
+
+        @Override
+        public OutputCondition in(Source source) {
+            return new LineCountCondition(source, count);
+        }
+
+        @Override
+        Matcher newMatcher() {
+            return new Matcher() {
+
+                private int lines = 0;
+
+                @Override
+                boolean update(byte[] bytes, int offset, int length) {
+                    for (int i = offset; i < offset + length; i++) {
+                        if (bytes[i] == '\n' && ++lines >= count) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * An {@link OutputStream} decorator that feeds written bytes to a
+     * {@link Matcher}, running a callback once the condition is met.
+     */
+    private static final class WatchingOutputStream extends OutputStream {
+
+        private final OutputStream sink;
+        private final Matcher matcher;
+        private final Runnable onMet;
+        private boolean met = false;
+
+        WatchingOutputStream(OutputStream sink, Matcher matcher, Runnable onMet) {
+            this.sink = sink;
+            this.matcher = matcher;
+            this.onMet = onMet;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            sink.write(bytes, offset, length);
+            if (!met && matcher.update(bytes, offset, length)) {
+                met = true;
+                onMet.run();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+    }
+}
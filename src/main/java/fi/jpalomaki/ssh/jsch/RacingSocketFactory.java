@@ -0,0 +1,423 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.jcraft.jsch.SocketFactory;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+import fi.jpalomaki.ssh.util.Assert;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
+
+/**
+ * Jsch {@link SocketFactory} that caches host name resolution and races connection
+ * attempts across the resolved addresses, Happy Eyeballs style (RFC 8305). Thread-safe.
+ *
+ * Resolved addresses are cached for a configurable time (default 60s), and resolution
+ * failures for a shorter time (default 5s), so that a slow or failing resolver is not
+ * consulted on every connection. Concurrent connections to a host that is not cached
+ * share a single resolution, and expired resolutions are evicted. Addresses are tried alternating between IPv6 and IPv4
+ * (starting with the family the resolver preferred), starting the next attempt whenever
+ * the previous one fails or has not succeeded within the attempt delay (default 250ms).
+ * The first connection to succeed wins, and the others are abandoned.
+ *
+ * Since Jsch does not pass its connect timeout to socket factories, the connect
+ * timeout (default 5s) is configured here. Close the factory once no longer used, to
+ * stop its connection attempt threads.
+ *
+ * @author jpalomaki
+ */
+public final class RacingSocketFactory implements SocketFactory, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RacingSocketFactory.class);
+
+    /**
+     * Resolves a host name to its addresses.
+     */
+    interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private final Resolver resolver;
+    private final ConcurrentMap<String, Future<Resolution>> resolutions = new ConcurrentHashMap<String, Future<Resolution>>();
+    private final ExecutorService attempts = Executors.newCachedThreadPool(new DaemonThreadFactory("jsch-connect-attempt"));
+    private volatile long resolutionTtl = 60L * 1000;
+    private volatile long negativeResolutionTtl = 5L * 1000;
+    private volatile long connectTimeout = 5L * 1000;
+    private volatile long attemptDelay = 250L;
+    private volatile boolean closed = false;
+
+    private final AtomicLong resolutionCount = new AtomicLong();
+    private final AtomicLong resolutionNanos = new AtomicLong();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong negativeCacheHitCount = new AtomicLong();
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong failedConnectCount = new AtomicLong();
+
+    /**
+     * Constructs a new {@link RacingSocketFactory} resolving host names with {@link InetAddress#getAllByName(String)}.
+     */
+    public RacingSocketFactory() {
+        this(new Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                return InetAddress.getAllByName(host);
+            }
+        });
+    }
+
+    RacingSocketFactory(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Sets the time resolved addresses are cached (default 60s), specified in ms/s/m/h/d.
+     */
+    public void setResolutionTtl(String resolutionTtl) {
+        this.resolutionTtl = Options.toMillis(resolutionTtl);
+    }
+
+    /**
+     * Sets the time resolution failures are cached (default 5s), specified in ms/s/m/h/d.
+     */
+    public void setNegativeResolutionTtl(String negativeResolutionTtl) {
+        this.negativeResolutionTtl = Options.toMillis(negativeResolutionTtl);
+    }
+
+    /**
+     * Sets the connect timeout over all attempts (default 5s), specified in ms/s/m/h/d, 0s for no timeout.
+     */
+    public void setConnectTimeout(String connectTimeout) {
+        long millis = Options.toMillis(connectTimeout);
+        Assert.isTrue(millis <= Integer.MAX_VALUE, "Connect timeout must be <= Integer.MAX_VALUE ms");
+        this.connectTimeout = millis;
+    }
+
+    /**
+     * Sets the delay before starting the next connection attempt (default 250ms), specified in ms/s/m/h/d.
+     */
+    public void setAttemptDelay(String attemptDelay) {
+        this.attemptDelay = Options.toMillis(attemptDelay);
+    }
+
+    /**
+     * Returns the number of host name resolutions made (excluding cache hits).
+     */
+    public long getResolutionCount() {
+        return resolutionCount.get();
+    }
+
+    /**
+     * Returns the total time spent resolving host names, in milliseconds.
+     */
+    public long getResolutionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(resolutionNanos.get());
+    }
+
+    /**
+     * Returns the number of host name resolutions served from cache (successful resolutions).
+     */
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of host name resolutions served from cache (failed resolutions).
+     */
+    public long getNegativeCacheHitCount() {
+        return negativeCacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of successful connections.
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * Returns the total time spent establishing successful connections (excluding resolution), in milliseconds.
+     */
+    public long getConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(connectNanos.get());
+    }
+
+    /**
+     * Returns the number of connection attempts started (one per address tried).
+     */
+    public long getAttemptCount() {
+        return attemptCount.get();
+    }
+
+    /**
+     * Returns the number of connections that failed (all attempts failed or timed out).
+     */
+    public long getFailedConnectCount() {
+        return failedConnectCount.get();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Assert.isTrue(!closed, "Socket factory has been closed");
+        long start = System.nanoTime();
+        InetAddress[] addresses = resolve(host);
+        long resolved = System.nanoTime();
+        try {
+            Socket socket = race(interleave(addresses), port);
+            long connected = System.nanoTime();
+            connectCount.incrementAndGet();
+            connectNanos.addAndGet(connected - resolved);
+            LOGGER.debug(String.format("Connected to %s:%d at %s (resolve %d ms, connect %d ms)", host, port,
+                    socket.getInetAddress().getHostAddress(), (resolved - start) / 1000000, (connected - resolved) / 1000000));
+            return socket;
+        } catch (IOException e) {
+            failedConnectCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(Socket socket) throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream(Socket socket) throws IOException {
+        return socket.getOutputStream();
+    }
+
+    /**
+     * Removes all cached resolutions.
+     */
+    public void clearCache() {
+        resolutions.clear();
+    }
+
+    /**
+     * Returns the number of hosts with a cached (or in-flight) resolution.
+     */
+    int cachedHostCount() {
+        return resolutions.size();
+    }
+
+    /**
+     * Stops the connection attempt threads, and removes all cached resolutions.
+     * The factory may not be used afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        attempts.shutdownNow();
+        resolutions.clear();
+    }
+
+    /**
+     * Returns the cached (or concurrently resolved) addresses of the given host, or resolves them,
+     * evicting expired resolutions of all hosts.
+     */
+    private InetAddress[] resolve(final String host) throws IOException {
+        while (true) {
+            Future<Resolution> resolution = resolutions.get(host);
+            boolean cached = resolution != null && resolution.isDone();
+            boolean resolvedHere = false;
+            if (resolution == null) {
+                FutureTask<Resolution> lookup = new FutureTask<Resolution>(new Callable<Resolution>() {
+                    @Override
+                    public Resolution call() {
+                        return lookUp(host);
+                    }
+                });
+                resolution = resolutions.putIfAbsent(host, lookup);
+                if (resolution == null) {
+                    resolution = lookup;
+                    resolvedHere = true;
+                    evictExpired();
+                    lookup.run();
+                }
+            }
+            Resolution resolved = await(host, resolution);
+            if (cached && resolved.expires <= System.currentTimeMillis()) {
+                resolutions.remove(host, resolution);
+                continue;
+            }
+            if (resolved.addresses == null) {
+                if (resolvedHere) {
+                    throw resolved.failure;
+                }
+                negativeCacheHitCount.incrementAndGet();
+                throw new UnknownHostException(host + " (cached: " + resolved.failure.getMessage() + ")");
+            }
+            if (!resolvedHere) {
+                cacheHitCount.incrementAndGet();
+            }
+            return resolved.addresses;
+        }
+    }
+
+    private Resolution lookUp(String host) {
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            return new Resolution(addresses, null, System.currentTimeMillis() + resolutionTtl);
+        } catch (UnknownHostException e) {
+            return new Resolution(null, e, System.currentTimeMillis() + negativeResolutionTtl);
+        } finally {
+            resolutionCount.incrementAndGet();
+            resolutionNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Resolution await(String host, Future<Resolution> resolution) throws IOException {
+        try {
+            return resolution.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving " + host);
+        } catch (ExecutionException e) {
+            resolutions.remove(host, resolution); // Resolver failed unexpectedly, so that the next connection retries
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException("Failed to resolve " + host, e.getCause());
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Future<Resolution>> entry : resolutions.entrySet()) {
+            Future<Resolution> resolution = entry.getValue();
+            if (resolution.isDone()) {
+                try {
+                    if (resolution.get().expires <= now) {
+                        resolutions.remove(entry.getKey(), resolution);
+                    }
+                } catch (Exception e) {
+                    resolutions.remove(entry.getKey(), resolution);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the given addresses alternating between address families, starting with the family of the first one.
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            boolean sameFamily = (address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address);
+            (sameFamily ? first : second).add(address);
+        }
+        List<InetAddress> interleaved = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                interleaved.add(first.get(i));
+            }
+            if (i < second.size()) {
+                interleaved.add(second.get(i));
+            }
+        }
+        return interleaved;
+    }
+
+    private Socket race(List<InetAddress> addresses, int port) throws IOException {
+        long timeout = connectTimeout;
+        long deadline = timeout > 0L ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        CompletionService<Socket> completion = new ExecutorCompletionService<Socket>(attempts);
+        List<Socket> sockets = new ArrayList<Socket>(addresses.size());
+        IOException lastFailure = null;
+        int started = 0;
+        int failed = 0;
+        Socket winner = null;
+        try {
+            while (winner == null && failed < addresses.size()) {
+                if (started == failed) {
+                    startAttempt(completion, sockets, new InetSocketAddress(addresses.get(started++), port), timeout);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    break;
+                }
+                long wait = started < addresses.size() ? Math.min(attemptDelay, remaining) : remaining;
+                Future<Socket> attempt = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (attempt == null) {
+                    if (started < addresses.size()) {
+                        startAttempt(completion, sockets, new InetSocketAddress(addresses.get(started++), port), timeout);
+                    }
+                    continue;
+                }
+                try {
+                    winner = attempt.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    lastFailure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + addresses, e);
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    close(socket);
+                }
+            }
+        }
+        if (winner != null) {
+            return winner;
+        }
+        if (lastFailure != null && failed == addresses.size()) {
+            throw lastFailure;
+        }
+        throw new IOException("Timed out connecting to " + addresses + " after " + timeout + " ms");
+    }
+
+    private void startAttempt(CompletionService<Socket> completion, List<Socket> sockets, final InetSocketAddress address, final long timeout) {
+        final Socket socket = new Socket();
+        sockets.add(socket);
+        attemptCount.incrementAndGet();
+        completion.submit(new Callable<Socket>() {
+            @Override
+            public Socket call() throws IOException {
+                socket.connect(address, (int)timeout);
+                return socket;
+            }
+        });
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static final class Resolution {
+
+        final InetAddress[] addresses;
+        final UnknownHostException failure;
+        final long expires;
+
+        Resolution(InetAddress[] addresses, UnknownHostException failure, long expires) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * A ustar archive of regular files, streamed as it is read: file contents are read
+ * lazily, so that the archive is never held in memory. Not thread-safe.
+ *
+ * @author jpalomaki
+ */
+final class TarArchive {
+
+    private static final int BLOCK = 512;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds an entry with the given region of the given file as content. Should the
+     * file be shorter than expected by the time it is read, reading the archive fails.
+     */
+    void addFile(String name, Path file, long offset, long size, int mode, long mtimeSeconds) {
+        entries.add(new Entry(name, file, offset, size, null, mode, mtimeSeconds));
+    }
+
+    /**
+     * Adds an entry with the given bytes as content.
+     */
+    void addBytes(String name, byte[] bytes, int mode, long mtimeSeconds) {
+        entries.add(new Entry(name, null, 0L, bytes.length, bytes, mode, mtimeSeconds));
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int entryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the size of the archive, in bytes.
+     */
+    long size() {
+        long size = 2 * BLOCK; // End of archive
+        for (Entry entry : entries) {
+            size += BLOCK + padded(entry.size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns a new stream of the archive.
+     */
+    InputStream open() {
+        final Iterator<Entry> iterator = entries.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+
+            private Entry entry = null;
+            private int part = 0;
+            private boolean ended = false;
+
+            @Override
+            public boolean hasMoreElements() {
+                return !ended;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (entry == null || part == 3) {
+                    if (!iterator.hasNext()) {
+                        ended = true;
+                        return new ByteArrayInputStream(new byte[2 * BLOCK]);
+                    }
+                    entry = iterator.next();
+                    part = 0;
+                }
+                switch (part++) {
+                    case 0:
+                        return new ByteArrayInputStream(header(entry.name, entry.mode, entry.size, entry.mtimeSeconds));
+                    case 1:
+                        return entry.bytes != null ? new ByteArrayInputStream(entry.bytes) :
+                            new FileRegionInputStream(entry.file, entry.offset, entry.size);
+                    default:
+                        return new ByteArrayInputStream(new byte[(int)(padded(entry.size) - entry.size)]);
+                }
+            }
+        });
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    /**
+     * Returns a ustar header for a regular file.
+     */
+    static byte[] header(String name, int mode, long size, long mtimeSeconds) {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        Assert.isTrue(nameBytes.length <= 100, "Entry name must be <= 100 bytes");
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(header, 100, 8, mode);
+        octal(header, 108, 8, 0L); // uid
+        octal(header, 116, 8, 0L); // gid
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtimeSeconds);
+        Arrays.fill(header, 148, 156, (byte)' ');
+        header[156] = '0'; // Regular file
+        System.arraycopy("ustar\u000000".getBytes(UTF_8), 0, header, 257, 8);
+        long checksum = 0L;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        Assert.isTrue(digits.length() < length, "Value too large for tar header: " + value);
+        for (int i = 0; i < length - 1; i++) {
+            int digit = i - (length - 1 - digits.length());
+            header[offset + i] = (byte)(digit >= 0 ? digits.charAt(digit) : '0');
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private static final class Entry {
+
+        final String name;
+        final Path file;
+        final long offset;
+        final long size;
+        final byte[] bytes;
+        final int mode;
+        final long mtimeSeconds;
+
+        Entry(String name, Path file, long offset, long size, byte[] bytes, int mode, long mtimeSeconds) {
+            this.name = name;
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+            this.bytes = bytes;
+            this.mode = mode;
+            this.mtimeSeconds = mtimeSeconds;
+        }
+    }
+
+    /**
+     * Reads exactly the given region of a file, opening it on first read. Fails if the file
+     * has become shorter, rather than sending content that does not match the file.
+     */
+    private static final class FileRegionInputStream extends InputStream {
+
+        private final Path file;
+        private long position;
+        private long remaining;
+        private FileChannel channel;
+
+        FileRegionInputStream(Path file, long offset, long size) {
+            this.file = file;
+            this.position = offset;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining == 0L) {
+                return -1;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            int wanted = (int)Math.min(length, remaining);
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, wanted), position);
+            if (read <= 0) {
+                throw new IOException("File " + file + " shrank while being read, " + remaining + " bytes short");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
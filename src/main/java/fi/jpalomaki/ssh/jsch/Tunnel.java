@@ -0,0 +1,240 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import fi.jpalomaki.ssh.util.DaemonThreadFactory;
+
+/**
+ * Local port forwarding tunnel over a dedicated session. Think <code>ssh -L</code>.
+ *
+ * Listens on an ephemeral loopback port, forwarding each accepted connection through
+ * a <code>direct-tcpip</code> channel to the remote host and port. Channels are opened
+ * on worker threads, so that one slow channel open does not hold up other connections.
+ * Reference counted, so that it can be shared (see {@link LocalPortForward}). Thread-safe.
+ *
+ * @author jpalomaki
+ */
+final class Tunnel implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Tunnel.class);
+
+    private final Session session;
+    private final String remoteHost;
+    private final int remotePort;
+    private final int connectTimeout;
+    private final ServerSocket serverSocket;
+    private final ExecutorService channelOpener;
+
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong connectionCount = new AtomicLong();
+    final AtomicInteger activeConnectionCount = new AtomicInteger();
+
+    private int references = 0;
+    private long idleSince = System.nanoTime();
+    private Future<?> teardown;
+    private boolean closed = false;
+
+    Tunnel(Session session, String remoteHost, int remotePort, int connectTimeout) throws IOException {
+        this.session = session;
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        this.connectTimeout = connectTimeout;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.channelOpener = Executors.newCachedThreadPool(new DaemonThreadFactory("ssh-tunnel-" + localPort() + "-open"));
+        new DaemonThreadFactory("ssh-tunnel-" + localPort()).newThread(this).start();
+    }
+
+    int localPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Adds a reference to this tunnel, returning false if the tunnel is no longer usable.
+     */
+    synchronized boolean acquire() {
+        if (closed || !session.isConnected()) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Removes a reference to this tunnel, returning true if it is no longer referenced.
+     */
+    synchronized boolean release() {
+        if (--references == 0) {
+            idleSince = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the pending idle teardown of this tunnel (if any) with the given one.
+     */
+    synchronized void setTeardown(Future<?> teardown) {
+        if (this.teardown != null) {
+            this.teardown.cancel(false);
+        }
+        this.teardown = teardown;
+    }
+
+    /**
+     * Closes this tunnel if it has not been referenced for at least the given time
+     * (since the last release), returning true if it was closed.
+     */
+    boolean closeIfIdle(long idleMillis) {
+        synchronized (this) {
+            if (references > 0 || closed || System.nanoTime() - idleSince < idleMillis * 1000000L) {
+                return false;
+            }
+            closed = true;
+        }
+        doClose();
+        return true;
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        doClose();
+    }
+
+    private void doClose() {
+        LOGGER.debug("Closing tunnel from local port " + localPort() + " to " + remoteHost + ":" + remotePort);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        channelOpener.shutdown();
+        session.disconnect();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                try {
+                    channelOpener.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                forward(socket);
+                            } catch (IOException e) {
+                                LOGGER.warn("Failed to forward connection on local port " + localPort(), e);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    socket.close(); // Tunnel closed
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("Failed to accept connection on local port " + localPort(), e);
+                }
+            }
+        }
+    }
+
+    private void forward(final Socket socket) throws IOException {
+        final AtomicBoolean open = new AtomicBoolean(true);
+        activeConnectionCount.incrementAndGet();
+        connectionCount.incrementAndGet();
+        try {
+            ChannelDirectTCPIP channel = (ChannelDirectTCPIP)session.openChannel("direct-tcpip");
+            channel.setHost(remoteHost);
+            channel.setPort(remotePort);
+            channel.setInputStream(new CountingInputStream(socket.getInputStream(), bytesSent));
+            channel.setOutputStream(new CountingOutputStream(socket.getOutputStream(), bytesReceived) {
+                @Override
+                public void close() throws IOException {
+                    closeConnection(socket, open);
+                }
+            });
+            channel.connect(connectTimeout);
+        } catch (JSchException e) {
+            LOGGER.warn("Failed to forward connection to " + remoteHost + ":" + remotePort, e);
+            closeConnection(socket, open);
+        }
+    }
+
+    private void closeConnection(Socket socket, AtomicBoolean open) throws IOException {
+        if (open.compareAndSet(true, false)) {
+            activeConnectionCount.decrementAndGet();
+            socket.close();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count.incrementAndGet(); // Before writing, so that the count includes whatever the client has seen
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            count.addAndGet(length);
+            out.write(bytes, offset, length);
+        }
+    }
+}
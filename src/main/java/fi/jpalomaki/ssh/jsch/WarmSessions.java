@@ -0,0 +1,334 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import fi.jpalomaki.ssh.UserAtHost;
+
+/**
+ * Pools of pre-established (warm) sessions to known hosts, so that commands to them
+ * skip connect, key exchange and authentication. Thread-safe.
+ *
+ * Each warmed host has a target number of sessions, counting idle sessions, sessions taken
+ * by running commands and sessions being connected. Sessions of completed commands are
+ * handed back, as long as the pool is below target (otherwise they are disconnected), and
+ * the pool is replenished in the background only once a taken session is lost (e.g. its
+ * command timed out), so that steady traffic reuses sessions rather than reconnecting.
+ * Idle sessions are kept alive with protocol-level keepalive messages, so that idle NAT
+ * and firewall timeouts do not silently kill them.
+ *
+ * @author jpalomaki
+ */
+final class WarmSessions {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmSessions.class);
+
+    /**
+     * Connects new sessions.
+     */
+    interface Connector {
+        Session connect(UserAtHost userAtHost) throws JSchException;
+    }
+
+    private final Connector connector;
+    private final Executor connectExecutor;
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+    private volatile boolean closed = false;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong keepAliveCount = new AtomicLong();
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong failedConnectCount = new AtomicLong();
+    private final AtomicBoolean keepAliveRunning = new AtomicBoolean(false);
+
+    WarmSessions(Connector connector, Executor connectExecutor) {
+        this.connector = connector;
+        this.connectExecutor = connectExecutor;
+    }
+
+    /**
+     * Starts keeping the given number of idle sessions to each of the given hosts, connecting
+     * them on the connect executor, and waits for the connections. Returns the number of idle
+     * sessions to the given hosts afterwards.
+     */
+    int warmUp(Collection<UserAtHost> userAtHosts, int sessionsPerHost) throws InterruptedException {
+        List<Future<?>> connects = new ArrayList<Future<?>>();
+        List<Pool> warmed = new ArrayList<Pool>();
+        for (UserAtHost userAtHost : userAtHosts) {
+            Pool pool = new Pool(userAtHost);
+            Pool existing = pools.putIfAbsent(key(userAtHost), pool);
+            pool = existing != null ? existing : pool;
+            pool.target = sessionsPerHost;
+            warmed.add(pool);
+            connects.addAll(replenish(pool));
+        }
+        for (Future<?> connect : connects) {
+            try {
+                connect.get();
+            } catch (ExecutionException e) {
+                // Counted and logged by the connect task
+            }
+        }
+        int idle = 0;
+        for (Pool pool : warmed) {
+            idle += pool.idle.size();
+        }
+        return idle;
+    }
+
+    /**
+     * Takes an idle session to the given host, or returns <code>null</code> if there is none.
+     * A taken session must be either handed back with {@link #release(UserAtHost, Session, long, boolean)},
+     * or reported {@link #lost(UserAtHost)}.
+     */
+    WarmSession take(UserAtHost userAtHost) {
+        Pool pool = pools.get(key(userAtHost));
+        if (pool != null) {
+            WarmSession warmSession;
+            while ((warmSession = pool.idle.pollFirst()) != null) {
+                if (warmSession.session.isConnected()) {
+                    pool.taken.incrementAndGet();
+                    hitCount.incrementAndGet();
+                    return warmSession;
+                }
+                warmSession.session.disconnect();
+            }
+            replenish(pool);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Hands back the (idle, healthy) session of a completed command, returning false if the
+     * session should be disconnected instead (host not warmed, or pool already at target).
+     *
+     * @param taken Whether the session was taken from this pool
+     */
+    boolean release(UserAtHost userAtHost, Session session, long handshakeNanos, boolean taken) {
+        Pool pool = pools.get(key(userAtHost));
+        if (pool == null) {
+            return false;
+        }
+        synchronized (pool) {
+            if (taken) {
+                pool.taken.decrementAndGet();
+            }
+            if (!closed && session.isConnected() && pool.size() < pool.target) {
+                pool.idle.addFirst(new WarmSession(session, handshakeNanos));
+                return true;
+            }
+        }
+        replenish(pool); // In case a taken session was not healthy
+        return false;
+    }
+
+    /**
+     * Reports that a session taken from the pool of the given host will not be handed back
+     * (i.e. has been disconnected), replenishing the pool.
+     */
+    void lost(UserAtHost userAtHost) {
+        Pool pool = pools.get(key(userAtHost));
+        if (pool != null) {
+            pool.taken.decrementAndGet();
+            replenish(pool);
+        }
+    }
+
+    /**
+     * Starts sending a keepalive message on every idle session on the connect executor,
+     * disconnecting failed ones, and replenishing pools below target (e.g. after failed
+     * connects). Keepalives are socket writes that may block on TCP back-pressure, so they
+     * are not sent on the calling thread (the event loop). Does nothing if the previous
+     * round is still running.
+     */
+    void keepAlive() {
+        if (closed || !keepAliveRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            connectExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendKeepAlives();
+                    } finally {
+                        keepAliveRunning.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            keepAliveRunning.set(false); // Client closed
+        }
+    }
+
+    private void sendKeepAlives() {
+        for (Pool pool : pools.values()) {
+            for (WarmSession warmSession : pool.idle) {
+                try {
+                    if (!warmSession.session.isConnected()) {
+                        throw new IllegalStateException("Session disconnected");
+                    }
+                    warmSession.session.sendKeepAliveMsg();
+                    keepAliveCount.incrementAndGet();
+                } catch (Exception e) {
+                    LOGGER.debug("Dropping warm session to " + pool.userAtHost + ": " + e.getMessage());
+                    if (pool.idle.remove(warmSession)) {
+                        warmSession.session.disconnect();
+                    }
+                }
+            }
+            replenish(pool);
+        }
+    }
+
+    /**
+     * Disconnects all idle sessions, and stops keeping any.
+     */
+    void close() {
+        closed = true;
+        for (Pool pool : pools.values()) {
+            synchronized (pool) { // So that no connect completing concurrently adds a session afterwards
+                WarmSession warmSession;
+                while ((warmSession = pool.idle.pollFirst()) != null) {
+                    warmSession.session.disconnect();
+                }
+            }
+        }
+    }
+
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    long missCount() {
+        return missCount.get();
+    }
+
+    long keepAliveCount() {
+        return keepAliveCount.get();
+    }
+
+    long connectCount() {
+        return connectCount.get();
+    }
+
+    long failedConnectCount() {
+        return failedConnectCount.get();
+    }
+
+    int idleCount() {
+        int idle = 0;
+        for (Pool pool : pools.values()) {
+            idle += pool.idle.size();
+        }
+        return idle;
+    }
+
+    /**
+     * Starts connecting sessions until the given pool has (or will have) its target number of sessions.
+     */
+    private List<Future<?>> replenish(final Pool pool) {
+        List<Future<?>> connects = new ArrayList<Future<?>>();
+        synchronized (pool) {
+            while (!closed && pool.size() < pool.target) {
+                pool.connecting.incrementAndGet();
+                FutureTask<Void> connect = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        connect(pool);
+                    }
+                }, null);
+                try {
+                    connectExecutor.execute(connect);
+                } catch (RuntimeException e) {
+                    pool.connecting.decrementAndGet(); // Client closed
+                    break;
+                }
+                connects.add(connect);
+            }
+        }
+        return connects;
+    }
+
+    private void connect(Pool pool) {
+        boolean connecting = true;
+        try {
+            long start = System.nanoTime();
+            Session session = connector.connect(pool.userAtHost);
+            long handshakeNanos = System.nanoTime() - start;
+            connectCount.incrementAndGet();
+            synchronized (pool) {
+                pool.connecting.decrementAndGet();
+                connecting = false;
+                if (!closed && pool.size() < pool.target) { // Otherwise target lowered meanwhile
+                    pool.idle.addLast(new WarmSession(session, handshakeNanos));
+                    session = null;
+                }
+            }
+            if (session != null) {
+                session.disconnect();
+            }
+        } catch (Exception e) {
+            failedConnectCount.incrementAndGet();
+            LOGGER.debug("Failed to warm up session to " + pool.userAtHost + ": " + e.getMessage());
+        } finally {
+            if (connecting) {
+                pool.connecting.decrementAndGet();
+            }
+        }
+    }
+
+    private static String key(UserAtHost userAtHost) {
+        return userAtHost.user + "@" + userAtHost.host + ":" + userAtHost.port;
+    }
+
+    /**
+     * An idle connected session, and the time it took to establish it.
+     */
+    static final class WarmSession {
+
+        final Session session;
+        final long handshakeNanos;
+
+        WarmSession(Session session, long handshakeNanos) {
+            this.session = session;
+            this.handshakeNanos = handshakeNanos;
+        }
+    }
+
+    private static final class Pool {
+
+        final UserAtHost userAtHost;
+        final ConcurrentLinkedDeque<WarmSession> idle = new ConcurrentLinkedDeque<WarmSession>();
+        final AtomicInteger connecting = new AtomicInteger();
+        final AtomicInteger taken = new AtomicInteger();
+        volatile int target;
+
+        Pool(UserAtHost userAtHost) {
+            this.userAtHost = userAtHost;
+        }
+
+        /**
+         * Returns the number of sessions idle, taken or being connected.
+         */
+        int size() {
+            return idle.size() + taken.get() + connecting.get();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package fi.jpalomaki.ssh.mock;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Latency distribution for simulated commands. Immutable.
+ *
+ * Latencies are specified as text (to be configurable e.g. through JMX):
+ *
+ * <ul>
+ * <li><code>5ms</code> - fixed latency</li>
+ * <li><code>uniform(1ms,5ms)</code> - uniformly distributed between min and max</li>
+ * <li><code>exponential(2ms)</code> - exponentially distributed with the given mean</li>
+ * <li><code>normal(10ms,2ms)</code> - normally distributed with the given mean and
+ * standard deviation (negative values are truncated to zero)</li>
+ * </ul>
+ *
+ * Durations are specified in us/ms/s, e.g. 250us for 250 microseconds.
+ *
+ * @author jpalomaki
+ */
+public final class Latency {
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(us|ms|s)");
+    private static final Pattern FUNCTION = Pattern.compile("(\\w+)\\((.*)\\)");
+
+    private enum Distribution {
+        FIXED, UNIFORM, EXPONENTIAL, NORMAL
+    }
+
+    private final String spec;
+    private final Distribution distribution;
+    private final long a;
+    private final long b;
+
+    private Latency(String spec, Distribution distribution, long a, long b) {
+        this.spec = spec;
+        this.distribution = distribution;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Parses the given latency specification.
+     *
+     * @param spec Latency specification, not <code>null</code> or empty
+     * @throws IllegalArgumentException If the specification is invalid
+     */
+    public static Latency parse(String spec) throws IllegalArgumentException {
+        Assert.hasText(spec, "Latency must not be null or empty");
+        String trimmed = spec.replace(" ", "");
+        Matcher function = FUNCTION.matcher(trimmed);
+        if (!function.matches()) {
+            return new Latency(trimmed, Distribution.FIXED, toNanos(trimmed), 0L);
+        }
+        String name = function.group(1);
+        String[] args = function.group(2).split(",");
+        if (name.equals("uniform") && args.length == 2) {
+            long min = toNanos(args[0]);
+            long max = toNanos(args[1]);
+            Assert.isTrue(min <= max, "Uniform latency min must be <= max: " + spec);
+            return new Latency(trimmed, Distribution.UNIFORM, min, max);
+        }
+        if (name.equals("exponential") && args.length == 1) {
+            return new Latency(trimmed, Distribution.EXPONENTIAL, toNanos(args[0]), 0L);
+        }
+        if (name.equals("normal") && args.length == 2) {
+            return new Latency(trimmed, Distribution.NORMAL, toNanos(args[0]), toNanos(args[1]));
+        }
+        throw new IllegalArgumentException("Invalid latency: " + spec);
+    }
+
+    /**
+     * Draws the next latency from this distribution, in nanoseconds (>= 0).
+     */
+    public long nextNanos(Random random) {
+        switch (distribution) {
+            case UNIFORM:
+                return a + (long)(random.nextDouble() * (b - a));
+            case EXPONENTIAL:
+                return (long)(-a * Math.log(1.0 - random.nextDouble()));
+            case NORMAL:
+                return Math.max(0L, a + (long)(random.nextGaussian() * b));
+            default:
+                return a;
+        }
+    }
+
+    static long toNanos(String duration) {
+        Matcher matcher = DURATION.matcher(duration);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid duration: " + duration + " (no unit specified?)");
+        }
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        if (unit.equals("us")) {
+            return value * 1000L;
+        }
+        if (unit.equals("ms")) {
+            return value * 1000L * 1000;
+        }
+        return value * 1000L * 1000 * 1000;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -34,7 +34,7 @@ public final class MockSshClient implements SshClient {
     @Override
     public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost) throws SshClientException {
         LOGGER.debug("Executing command '" + command + "' on " + userAtHost +
-                " (stdin = " + (stdin != null ? stdin.array().length : 0) + " bytes)");
+                " (stdin = " + (stdin != null ? stdin.remaining() : 0) + " bytes)");
         if (configuration.reportConnectionFailure) {
             throw new SshClientException("Fake connection failure", new SocketException("Failed to establish bogus socket"));
         }
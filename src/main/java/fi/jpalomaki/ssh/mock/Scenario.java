@@ -0,0 +1,167 @@
+package fi.jpalomaki.ssh.mock;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Pattern;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Scripted response for simulated commands matching a command and host pattern,
+ * for use with {@link ScenarioSshClient}. Thread-safe, and adjustable at runtime
+ * (e.g. through JMX).
+ *
+ * Patterns are regular expressions that must match the whole command (or host).
+ * The response is either the configured stdout, stdout generated to the given size,
+ * or the command stdin echoed back. Failure and timeout rates are probabilities
+ * between 0.0 and 1.0 (inclusive).
+ *
+ * Note: generated stdout is shared between results (for speed), so results must be
+ * treated as read-only.
+ *
+ * @author jpalomaki
+ */
+public class Scenario {
+
+    private static final byte[] GENERATED_LINE = "Lorem ipsum dolor sit amet, consectetur adipiscing elit\n".getBytes();
+
+    private volatile Pattern commandPattern = compile(".*");
+    private volatile Pattern hostPattern = compile(".*");
+    private volatile int exitCode = 0;
+    private volatile byte[] stdout = new byte[0];
+    private volatile byte[] stderr = new byte[0];
+    private volatile boolean echoStdin = false;
+    private volatile Latency latency = Latency.parse("0ms");
+    private volatile double failureRate = 0.0;
+    private volatile double timeoutRate = 0.0;
+
+    public String getCommandPattern() {
+        return commandPattern.pattern();
+    }
+
+    public void setCommandPattern(String commandPattern) {
+        Assert.hasText(commandPattern, "Command pattern must not be null or empty");
+        this.commandPattern = compile(commandPattern);
+    }
+
+    public String getHostPattern() {
+        return hostPattern.pattern();
+    }
+
+    public void setHostPattern(String hostPattern) {
+        Assert.hasText(hostPattern, "Host pattern must not be null or empty");
+        this.hostPattern = compile(hostPattern);
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public void setExitCode(int exitCode) {
+        this.exitCode = exitCode;
+    }
+
+    public String getStdout() {
+        return new String(stdout);
+    }
+
+    public void setStdout(String stdout) {
+        Assert.notNull(stdout, "Stdout must not be null (but may be empty)");
+        this.stdout = stdout.getBytes();
+    }
+
+    public int getStdoutSize() {
+        return stdout.length;
+    }
+
+    /**
+     * Sets stdout to generated text of the given size.
+     */
+    public void setStdoutSize(int stdoutSize) {
+        Assert.isTrue(stdoutSize >= 0, "Stdout size must be >= 0 bytes");
+        byte[] generated = new byte[stdoutSize];
+        for (int i = 0; i < stdoutSize; i += GENERATED_LINE.length) {
+            System.arraycopy(GENERATED_LINE, 0, generated, i, Math.min(GENERATED_LINE.length, stdoutSize - i));
+        }
+        this.stdout = generated;
+    }
+
+    public String getStderr() {
+        return new String(stderr);
+    }
+
+    public void setStderr(String stderr) {
+        Assert.notNull(stderr, "Stderr must not be null (but may be empty)");
+        this.stderr = stderr.getBytes();
+    }
+
+    public boolean isEchoStdin() {
+        return echoStdin;
+    }
+
+    public void setEchoStdin(boolean echoStdin) {
+        this.echoStdin = echoStdin;
+    }
+
+    public String getLatency() {
+        return latency.toString();
+    }
+
+    /**
+     * Sets the latency distribution, see {@link Latency} for syntax.
+     */
+    public void setLatency(String latency) {
+        this.latency = Latency.parse(latency);
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    public void setFailureRate(double failureRate) {
+        Assert.isTrue(failureRate >= 0.0 && failureRate <= 1.0, "Failure rate must be >= 0.0 and <= 1.0");
+        this.failureRate = failureRate;
+    }
+
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    public void setTimeoutRate(double timeoutRate) {
+        Assert.isTrue(timeoutRate >= 0.0 && timeoutRate <= 1.0, "Timeout rate must be >= 0.0 and <= 1.0");
+        this.timeoutRate = timeoutRate;
+    }
+
+    boolean matches(String command, UserAtHost userAtHost) {
+        return commandPattern.matcher(command).matches() && hostPattern.matcher(userAtHost.host).matches();
+    }
+
+    Latency latency() {
+        return latency;
+    }
+
+    byte[] stdoutFor(ByteBuffer stdin) {
+        if (echoStdin && stdin != null) {
+            ByteBuffer bytes = stdin.duplicate();
+            byte[] echo = new byte[bytes.remaining()];
+            bytes.get(echo);
+            return echo;
+        }
+        return stdout;
+    }
+
+    byte[] stderr() {
+        return stderr;
+    }
+
+    private static Pattern compile(String regex) {
+        return Pattern.compile(regex, Pattern.DOTALL);
+    }
+
+    @Override
+    public String toString() {
+        String hashCode = Integer.toHexString(hashCode());
+        String instance = getClass().getSimpleName() + "@" + hashCode;
+        return String.format("%s [commandPattern=%s, hostPattern=%s, exitCode=%s, latency=%s]",
+                instance, getCommandPattern(), getHostPattern(), exitCode, latency);
+    }
+}
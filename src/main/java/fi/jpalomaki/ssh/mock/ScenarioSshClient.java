@@ -0,0 +1,240 @@
+package fi.jpalomaki.ssh.mock;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.SessionTimeoutException;
+import fi.jpalomaki.ssh.SshClient;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Scenario-driven mocked {@link SshClient} for load testing purposes. Thread-safe.
+ *
+ * Each command is answered by the first {@link Scenario} matching the command and
+ * host, with latency drawn from the scenario latency distribution (with microsecond
+ * precision), and with failures and timeouts injected at the configured rates. Injected
+ * timeouts block for the session timeout of the simulated client (see {@link Configuration})
+ * before failing, like a real timeout would. Commands not matching any scenario fail with
+ * {@link SshClientException}.
+ *
+ * Scenarios and {@link Configuration} may be adjusted at runtime (e.g. through JMX).
+ * Below the concurrency limit (if any), execution does not lock or allocate beyond the
+ * result; see <code>ScenarioSshClientBenchmark</code> (in the tests) for the call rate.
+ *
+ * @author jpalomaki
+ */
+public final class ScenarioSshClient implements SshClient {
+
+    private volatile Scenario[] scenarios = new Scenario[0];
+    private volatile Configuration configuration = new Configuration();
+
+    private final AtomicInteger activeCommands = new AtomicInteger();
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition commandCompleted = queueLock.newCondition();
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+
+    public List<Scenario> getScenarios() {
+        return Collections.unmodifiableList(Arrays.asList(scenarios));
+    }
+
+    /**
+     * Sets the scenarios, in order of precedence (first match wins).
+     */
+    public void setScenarios(List<Scenario> scenarios) {
+        Assert.notNull(scenarios, "Scenarios must not be null");
+        this.scenarios = scenarios.toArray(new Scenario[scenarios.size()]);
+    }
+
+    public void setConfiguration(Configuration configuration) {
+        Assert.notNull(configuration, "Configuration must not be null");
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the number of commands executed (including failed ones).
+     */
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * Returns the number of injected failures.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Returns the number of injected timeouts.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Returns the number of commands that waited for the concurrency limit.
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Returns the number of commands currently waiting for the concurrency limit.
+     */
+    public int getQueuedCommands() {
+        return queuedCommands.get();
+    }
+
+    /**
+     * Returns the number of commands currently executing.
+     */
+    public int getActiveCommands() {
+        return activeCommands.get();
+    }
+
+    @Override
+    public Result executeCommand(String command, UserAtHost userAtHost) throws SshClientException {
+        return executeCommand(command, null, userAtHost);
+    }
+
+    @Override
+    public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost) throws SshClientException {
+        Assert.hasText(command, "Command must not be null or empty");
+        Assert.notNull(userAtHost, "User at host must not be null");
+        Scenario scenario = scenarioFor(command, userAtHost);
+        acquire();
+        try {
+            commandCount.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < scenario.getFailureRate()) {
+                failureCount.incrementAndGet();
+                throw new SshClientException("Fake connection failure", new SocketException("Failed to establish bogus socket"));
+            }
+            if (random.nextDouble() < scenario.getTimeoutRate()) {
+                long sessionTimeoutNanos = configuration.sessionTimeoutNanos;
+                sleepFor(sessionTimeoutNanos);
+                timeoutCount.incrementAndGet();
+                throw new SessionTimeoutException(sessionTimeoutNanos / (1000L * 1000));
+            }
+            sleepFor(scenario.latency().nextNanos(random));
+            return new Result(scenario.getExitCode(), scenario.stdoutFor(stdin), scenario.stderr());
+        } finally {
+            release();
+        }
+    }
+
+    private Scenario scenarioFor(String command, UserAtHost userAtHost) {
+        for (Scenario scenario : scenarios) {
+            if (scenario.matches(command, userAtHost)) {
+                return scenario;
+            }
+        }
+        throw new SshClientException("No scenario for command '" + command + "' on " + userAtHost);
+    }
+
+    /**
+     * Starts executing a command, waiting (in no particular order) while the concurrency limit is reached.
+     */
+    private void acquire() {
+        if (tryAcquire()) {
+            return;
+        }
+        queuedCount.incrementAndGet();
+        queueLock.lock();
+        queuedCommands.incrementAndGet(); // Before retrying, so that a completing command sees it and signals
+        try {
+            while (!tryAcquire()) {
+                commandCompleted.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SshClientException("Interrupted while waiting for the concurrency limit");
+        } finally {
+            queuedCommands.decrementAndGet();
+            queueLock.unlock();
+        }
+    }
+
+    private boolean tryAcquire() {
+        int limit = configuration.maxConcurrentCommands;
+        int active;
+        do {
+            active = activeCommands.get();
+            if (limit > 0 && active >= limit) {
+                return false;
+            }
+        } while (!activeCommands.compareAndSet(active, active + 1));
+        return true;
+    }
+
+    private void release() {
+        activeCommands.decrementAndGet();
+        if (queuedCommands.get() > 0) {
+            queueLock.lock();
+            try {
+                commandCompleted.signalAll(); // All, as the limit may have been raised meanwhile
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    private static void sleepFor(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0L; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new SshClientException("Interrupted while executing fake command");
+            }
+        }
+    }
+
+    public static class Configuration {
+
+        private volatile int maxConcurrentCommands = 0;
+        private volatile String sessionTimeout = "30s";
+        private volatile long sessionTimeoutNanos = Latency.toNanos(sessionTimeout);
+
+        public int getMaxConcurrentCommands() {
+            return maxConcurrentCommands;
+        }
+
+        /**
+         * Sets the maximum number of concurrently executing commands, 0 for no limit.
+         * Commands exceeding the limit wait for executing ones to complete.
+         */
+        public void setMaxConcurrentCommands(int maxConcurrentCommands) {
+            Assert.isTrue(maxConcurrentCommands >= 0, "Max concurrent commands must be >= 0");
+            this.maxConcurrentCommands = maxConcurrentCommands;
+        }
+
+        public String getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        /**
+         * Sets the session timeout of the simulated client (e.g. <code>5s</code>, default
+         * <code>30s</code>), for which commands with an injected timeout block before failing.
+         */
+        public void setSessionTimeout(String sessionTimeout) {
+            Assert.hasText(sessionTimeout, "Session timeout must not be null or empty");
+            this.sessionTimeoutNanos = Latency.toNanos(sessionTimeout.trim());
+            this.sessionTimeout = sessionTimeout.trim();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package fi.jpalomaki.ssh.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}, advancing
+ * its position. Works with any buffer (heap, direct or memory-mapped) without copying it.
+ * The number of bytes read may be followed from other threads. Not thread-safe otherwise.
+ *
+ * @author jpalomaki
+ */
+public final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+    private volatile long bytesRead = 0L;
+
+    /**
+     * Constructs a new {@link ByteBufferInputStream}. Pass in a {@link ByteBuffer#duplicate()}
+     * to leave the position of a shared buffer untouched.
+     *
+     * @param buffer Buffer to read, not <code>null</code>
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        Assert.notNull(buffer, "Buffer must not be null");
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the number of bytes read thus far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        bytesRead++;
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        bytesRead += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int)Math.max(0L, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        bytesRead += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
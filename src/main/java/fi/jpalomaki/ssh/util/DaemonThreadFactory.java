@@ -0,0 +1,33 @@
+package fi.jpalomaki.ssh.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates named daemon threads, so that
+ * library-internal thread pools never prevent the JVM from exiting.
+ *
+ * @author jpalomaki
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Constructs a new {@link DaemonThreadFactory}, naming threads <code>&lt;namePrefix&gt;-&lt;n&gt;</code>.
+     *
+     * @param namePrefix Thread name prefix, not <code>null</code> or empty
+     */
+    public DaemonThreadFactory(String namePrefix) {
+        Assert.hasText(namePrefix, "Name prefix must not be null or empty");
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
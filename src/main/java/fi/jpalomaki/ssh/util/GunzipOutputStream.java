@@ -0,0 +1,189 @@
+package fi.jpalomaki.ssh.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An {@link OutputStream} decorator that decompresses gzip data written through it
+ * (streaming, as it is written), writing the decompressed data to the sink. Supports
+ * concatenated gzip members. Not thread-safe.
+ *
+ * @author jpalomaki
+ */
+public final class GunzipOutputStream extends OutputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int TRAILER_LENGTH = 8;
+
+    private enum State {
+        HEADER, DATA, TRAILER
+    }
+
+    private final OutputStream sink;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private State state = State.HEADER;
+    private long memberBytes = 0L;
+    private boolean closed = false;
+
+    public GunzipOutputStream(OutputStream sink) {
+        Assert.notNull(sink, "Sink must not be null");
+        this.sink = sink;
+    }
+
+    /**
+     * Returns true if the data written thus far ends at a gzip member boundary, i.e.
+     * is not truncated (also true if no data has been written).
+     */
+    public boolean isComplete() {
+        return state == State.HEADER && pending.size() == 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            switch (state) {
+                case HEADER:
+                    offset = readHeader(bytes, offset, end);
+                    break;
+                case DATA:
+                    offset = inflate(bytes, offset, end);
+                    break;
+                default:
+                    offset = readTrailer(bytes, offset, end);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        sink.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+            sink.close();
+        }
+    }
+
+    private int readHeader(byte[] bytes, int offset, int end) throws IOException {
+        int consumed = 0;
+        while (offset + consumed < end) {
+            pending.write(bytes[offset + consumed++]);
+            int headerLength = headerLength(pending.toByteArray());
+            if (headerLength > 0) {
+                pending.reset();
+                state = State.DATA;
+                break;
+            }
+        }
+        return offset + consumed;
+    }
+
+    /**
+     * Returns the length of the gzip header in the given bytes, or -1 if incomplete.
+     */
+    private static int headerLength(byte[] header) throws IOException {
+        if (header.length >= 1 && (header[0] & 0xff) != 0x1f || header.length >= 2 && (header[1] & 0xff) != 0x8b) {
+            throw new IOException("Not in gzip format");
+        }
+        if (header.length >= 3 && header[2] != 8) {
+            throw new IOException("Unsupported gzip compression method: " + header[2]);
+        }
+        if (header.length < 10) {
+            return -1;
+        }
+        int flags = header[3] & 0xff;
+        int length = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (header.length < length + 2) {
+                return -1;
+            }
+            length += 2 + ((header[length] & 0xff) | (header[length + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            length = skipZeroTerminated(header, length);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            length = skipZeroTerminated(header, length);
+        }
+        if ((flags & FHCRC) != 0 && length >= 0) {
+            length += 2;
+        }
+        return length >= 0 && header.length >= length ? length : -1;
+    }
+
+    private static int skipZeroTerminated(byte[] header, int offset) {
+        for (int i = offset; i >= 0 && i < header.length; i++) {
+            if (header[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int inflate(byte[] bytes, int offset, int end) throws IOException {
+        inflater.setInput(bytes, offset, end - offset);
+        try {
+            while (true) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated > 0) {
+                    crc.update(buffer, 0, inflated);
+                    memberBytes += inflated;
+                    sink.write(buffer, 0, inflated);
+                } else if (inflater.finished()) {
+                    state = State.TRAILER;
+                    return end - inflater.getRemaining();
+                } else if (inflater.needsInput()) {
+                    return end;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Unsupported gzip data (preset dictionary)");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip data", e);
+        }
+    }
+
+    private int readTrailer(byte[] bytes, int offset, int end) throws IOException {
+        int consumed = Math.min(TRAILER_LENGTH - pending.size(), end - offset);
+        pending.write(bytes, offset, consumed);
+        if (pending.size() == TRAILER_LENGTH) {
+            byte[] trailer = pending.toByteArray();
+            if (readInt(trailer, 0) != (int)crc.getValue()) {
+                throw new IOException("Corrupt gzip data (CRC mismatch)");
+            }
+            if (readInt(trailer, 4) != (int)memberBytes) {
+                throw new IOException("Corrupt gzip data (size mismatch)");
+            }
+            pending.reset();
+            inflater.reset();
+            crc.reset();
+            memberBytes = 0L;
+            state = State.HEADER;
+        }
+        return offset + consumed;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
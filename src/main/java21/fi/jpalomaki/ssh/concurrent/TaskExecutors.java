@@ -0,0 +1,99 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import fi.jpalomaki.ssh.util.Assert;
+
+/**
+ * Factory for executors running blocking SSH tasks (one task per command).
+ *
+ * This is the Java 21+ implementation (multi-release jar), using virtual threads,
+ * so that tens of thousands of outstanding blocking commands only need a few
+ * carrier threads. Every task gets a virtual thread of its own (virtual threads are
+ * not pooled), and parallelism is bounded by a semaphore the tasks wait on.
+ *
+ * @author jpalomaki
+ */
+public final class TaskExecutors {
+
+    private TaskExecutors() {
+        // Non-instantiable
+    }
+
+    /**
+     * Returns a new executor running each task in a virtual thread of its own, at most the
+     * given number of them in parallel (the rest wait, in submission order).
+     *
+     * @param name Thread name prefix, not <code>null</code> or empty
+     * @param maxParallelism Maximum number of tasks to run in parallel, 0 for no limit
+     */
+    public static ExecutorService newTaskExecutor(String name, int maxParallelism) {
+        Assert.hasText(name, "Name must not be null or empty");
+        Assert.isTrue(maxParallelism >= 0, "Max parallelism must be >= 0");
+        ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+        return maxParallelism == 0 ? executor : new BoundedExecutor(executor, maxParallelism);
+    }
+
+    /**
+     * Thread-per-task executor running tasks only once they have acquired a permit.
+     */
+    private static final class BoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        BoundedExecutor(ExecutorService executor, int maxParallelism) {
+            this.executor = executor;
+            this.permits = new Semaphore(maxParallelism, true);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    if (task instanceof Future) {
+                        ((Future<?>)task).cancel(false); // Never run, so that nobody waits for it
+                    }
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow(); // Interrupts running and waiting tasks
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import fi.jpalomaki.ssh.*;
+import fi.jpalomaki.ssh.concurrent.DeadlineScheduler.Priority;
+
+public final class DeadlineSchedulerTest {
+
+    private final ByteBuffer stdin = ByteBuffer.wrap(new byte[0]);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch blocker = new CountDownLatch(1);
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+    private final SshClient sshClient = new SshClient() {
+        @Override
+        public Result executeCommand(String command, UserAtHost userAtHost) {
+            return executeCommand(command, ByteBuffer.wrap(new byte[0]), userAtHost);
+        }
+
+        @Override
+        public Result executeCommand(String command, ByteBuffer stdin, UserAtHost userAtHost) {
+            if (command.equals("block")) {
+                started.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // As JschSshClient does
+                    throw new SshClientException("Interrupted", e);
+                }
+            }
+            executed.add(command);
+            return new Result(0, command.getBytes(), new byte[0]);
+        }
+    };
+
+    private final UserAtHost userAtHost = new UserAtHost("test", "localhost");
+
+    @Test
+    public void testPriorityThenEarliestDeadlineFirst() throws Exception {
+        DeadlineScheduler scheduler = new DeadlineScheduler(sshClient, 1);
+        long now = System.currentTimeMillis();
+        scheduler.submit("block", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE);
+        started.await(); // The worker is busy with the blocking command
+        scheduler.submit("bulk", stdin, userAtHost, Priority.BULK, now + 1000L);
+        long queued = System.currentTimeMillis();
+        scheduler.submit("normal-late", stdin, userAtHost, Priority.NORMAL, now + 60000L);
+        scheduler.submit("normal-early", stdin, userAtHost, Priority.NORMAL, now + 30000L);
+        Future<Result> last = scheduler.submit("interactive", stdin, userAtHost, Priority.INTERACTIVE, DeadlineScheduler.NO_DEADLINE);
+        assertEquals(2, scheduler.getQueueDepth(Priority.NORMAL));
+        assertEquals(1, scheduler.getQueueDepth(Priority.BULK));
+        long released = System.currentTimeMillis();
+        blocker.countDown();
+        Future<Result> bulk = scheduler.submit("bulk-2", stdin, userAtHost, Priority.BULK, DeadlineScheduler.NO_DEADLINE);
+        bulk.get();
+        assertEquals("interactive", last.get().stdoutAsText());
+        assertEquals(Arrays.asList("block", "interactive", "normal-early", "normal-late", "bulk", "bulk-2"), executed);
+        assertEquals(0, scheduler.getQueueDepth(Priority.NORMAL));
+        assertEquals(3, scheduler.getDispatchedCount(Priority.NORMAL));
+        assertTrue(scheduler.getMaxWaitMillis(Priority.BULK) >= released - queued);
+        scheduler.close();
+    }
+
+    @Test
+    public void testExpiredRequestsAreDropped() throws Exception {
+        DeadlineScheduler scheduler = new DeadlineScheduler(sshClient, 1);
+        scheduler.submit("block", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE);
+        started.await();
+        Future<Result> expiring = scheduler.submit("expiring", stdin, userAtHost, Priority.INTERACTIVE, System.currentTimeMillis() + 20L);
+        Thread.sleep(100L);
+        blocker.countDown();
+        try {
+            expiring.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExpiredException);
+        }
+        assertEquals(1, scheduler.getExpiredCount(Priority.INTERACTIVE));
+        assertFalse(executed.contains("expiring"));
+        scheduler.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testExpiredWhileWorkersBusy() throws Exception {
+        DeadlineScheduler scheduler = new DeadlineScheduler(sshClient, 1);
+        scheduler.submit("block", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE);
+        started.await(); // The only worker stays busy until the end
+        long deadline = System.currentTimeMillis() + 200L;
+        Future<Result> expiring = scheduler.submit("expiring", stdin, userAtHost, Priority.INTERACTIVE, deadline);
+        try {
+            expiring.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExpiredException);
+        }
+        assertTrue(System.currentTimeMillis() >= deadline);
+        assertEquals(1, scheduler.getExpiredCount(Priority.INTERACTIVE));
+        assertEquals(0, scheduler.getQueueDepth(Priority.INTERACTIVE));
+        blocker.countDown();
+        scheduler.submit("after", stdin, userAtHost, Priority.INTERACTIVE, DeadlineScheduler.NO_DEADLINE).get();
+        assertFalse(executed.contains("expiring"));
+        assertEquals(1, scheduler.getExpiredCount(Priority.INTERACTIVE)); // Not also dropped by the worker
+        scheduler.close();
+    }
+
+    @Test
+    public void testCancelledRequestsAreRemoved() throws Exception {
+        DeadlineScheduler scheduler = new DeadlineScheduler(sshClient, 1);
+        scheduler.submit("block", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE);
+        started.await();
+        Future<Result> abandoned = scheduler.submit("abandoned", stdin, userAtHost, Priority.BULK, DeadlineScheduler.NO_DEADLINE);
+        assertEquals(1, scheduler.getQueueDepth(Priority.BULK));
+        assertTrue(abandoned.cancel(false));
+        assertEquals(0, scheduler.getQueueDepth(Priority.BULK));
+        assertEquals(1, scheduler.getCancelledCount(Priority.BULK));
+        blocker.countDown();
+        scheduler.submit("after", stdin, userAtHost, Priority.BULK, DeadlineScheduler.NO_DEADLINE).get();
+        assertFalse(executed.contains("abandoned"));
+        scheduler.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testWorkerSurvivesCancelledRunningRequest() throws Exception {
+        DeadlineScheduler scheduler = new DeadlineScheduler(sshClient, 1);
+        Future<Result> running = scheduler.submit("block", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE);
+        started.await();
+        assertTrue(running.cancel(true));
+        assertEquals("next", scheduler.submit("next", stdin, userAtHost, Priority.NORMAL, DeadlineScheduler.NO_DEADLINE).get().stdoutAsText());
+        assertEquals(2, scheduler.getDispatchedCount(Priority.NORMAL));
+        scheduler.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoWorkers() {
+        new DeadlineScheduler(sshClient, 0);
+    }
+}
@@ -0,0 +1,82 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import fi.jpalomaki.ssh.*;
+import fi.jpalomaki.ssh.jsch.JschSshClient;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+import fi.jpalomaki.ssh.mock.Scenario;
+import fi.jpalomaki.ssh.mock.ScenarioSshClient;
+
+/**
+ * Executes the given number of concurrent commands through {@link FanOut}, reporting
+ * the peak number of platform threads (excluding Jsch session threads). Run from the
+ * multi-release jar on Java 21+ to use virtual threads. Not run as part of the test suite.
+ *
+ * Usage: <code>FanOutBenchmark mock|jsch [commands]</code>, where <code>jsch</code>
+ * runs against a local SSH server (see {@link fi.jpalomaki.ssh.jsch.JschSshClientTest}).
+ */
+public final class FanOutBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        boolean mock = args.length == 0 || args[0].equals("mock");
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        SshClient sshClient = mock ? mockSshClient() : jschSshClient();
+        List<UserAtHost> userAtHosts = new ArrayList<UserAtHost>(commands);
+        for (int i = 0; i < commands; i++) {
+            userAtHosts.add(new UserAtHost("test", "localhost")); // Distinct instances, see FanOut
+        }
+        FanOut fanOut = new FanOut(sshClient, 0);
+        long start = System.currentTimeMillis();
+        Map<UserAtHost, Future<Result>> results = fanOut.executeCommand("sleep 5s", ByteBuffer.wrap(new byte[0]), userAtHosts);
+        int peakPlatformThreads = 0;
+        int peakSessionThreads = 0;
+        while (!allDone(results.values())) {
+            int sessionThreads = 0;
+            int platformThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("Connect thread")) {
+                    sessionThreads++;
+                } else {
+                    platformThreads++;
+                }
+            }
+            peakPlatformThreads = Math.max(peakPlatformThreads, platformThreads);
+            peakSessionThreads = Math.max(peakSessionThreads, sessionThreads);
+            Thread.sleep(100L);
+        }
+        fanOut.close();
+        if (results.size() != commands) {
+            throw new IllegalStateException("Expected " + commands + " results, got " + results.size());
+        }
+        System.out.println(String.format("java=%s commands=%d wallMs=%d peakPlatformThreads=%d peakJschSessionThreads=%d",
+                System.getProperty("java.version"), commands, System.currentTimeMillis() - start,
+                peakPlatformThreads, peakSessionThreads));
+    }
+
+    private static boolean allDone(Iterable<Future<Result>> futures) {
+        for (Future<Result> future : futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SshClient mockSshClient() {
+        Scenario scenario = new Scenario();
+        scenario.setLatency("5s");
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(new ArrayList<Scenario>(Collections.singletonList(scenario)));
+        return sshClient;
+    }
+
+    private static SshClient jschSshClient() {
+        Options options = new Options("30s", "0s", "1K", "1K", "StrictHostKeyChecking=no", false);
+        return new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+    }
+}
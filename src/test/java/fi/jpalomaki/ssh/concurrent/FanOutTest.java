@@ -0,0 +1,72 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import fi.jpalomaki.ssh.*;
+import fi.jpalomaki.ssh.mock.Scenario;
+import fi.jpalomaki.ssh.mock.ScenarioSshClient;
+
+public final class FanOutTest {
+
+    @Test
+    public void testResultsInHostOrder() throws Exception {
+        Scenario scenario = new Scenario();
+        scenario.setEchoStdin(true);
+        scenario.setLatency("uniform(1ms,20ms)");
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario));
+        List<UserAtHost> userAtHosts = Arrays.asList(new UserAtHost("test", "a"), new UserAtHost("test", "b"), new UserAtHost("test", "c"));
+        FanOut fanOut = new FanOut(sshClient, 2);
+        Map<UserAtHost, Future<Result>> results = fanOut.executeCommand("cat -", ByteBuffer.wrap("x".getBytes()), userAtHosts);
+        assertEquals(userAtHosts, Arrays.asList(results.keySet().toArray()));
+        for (Future<Result> result : results.values()) {
+            assertEquals("x", result.get().stdoutAsText());
+        }
+        fanOut.close();
+    }
+
+    @Test
+    public void testResultGroups() throws Exception {
+        Scenario current = new Scenario();
+        current.setStdout("1.2.3\n");
+        Scenario outdated = new Scenario();
+        outdated.setHostPattern("c");
+        outdated.setStdout("1.2.2\n");
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(outdated, current));
+        List<UserAtHost> userAtHosts = Arrays.asList(new UserAtHost("test", "a"), new UserAtHost("test", "b"), new UserAtHost("test", "c"));
+        ResultGroups groups = new ResultGroups();
+        FanOut fanOut = new FanOut(sshClient, 2);
+        Map<UserAtHost, Future<Result>> results = fanOut.executeCommand("app --version", ByteBuffer.wrap(new byte[0]), userAtHosts, groups);
+        assertSame(results.get(userAtHosts.get(0)).get(), results.get(userAtHosts.get(1)).get());
+        assertEquals("1.2.2\n", results.get(userAtHosts.get(2)).get().stdoutAsText());
+        assertEquals("3 hosts: 2 identical, 1 differ (1 groups), 0 failed", groups.summary());
+        fanOut.close();
+    }
+
+    @Test
+    public void testRepeatedHostExecutedOnce() throws Exception {
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(new Scenario()));
+        UserAtHost a = new UserAtHost("test", "a");
+        UserAtHost b = new UserAtHost("test", "b");
+        FanOut fanOut = new FanOut(sshClient, 0);
+        Map<UserAtHost, Future<Result>> results = fanOut.executeCommand("true", ByteBuffer.wrap(new byte[0]), Arrays.asList(a, b, a));
+        assertEquals(Arrays.asList(a, b), Arrays.asList(results.keySet().toArray()));
+        for (Future<Result> result : results.values()) {
+            result.get();
+        }
+        assertEquals(2, sshClient.getCommandCount());
+        fanOut.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeParallelism() {
+        new FanOut(new ScenarioSshClient(), -1);
+    }
+}
@@ -0,0 +1,116 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import fi.jpalomaki.ssh.*;
+import fi.jpalomaki.ssh.mock.Scenario;
+import fi.jpalomaki.ssh.mock.ScenarioSshClient;
+
+public final class HedgingExecutorTest {
+
+    private final List<UserAtHost> replicas = Arrays.asList(new UserAtHost("test", "slow"), new UserAtHost("test", "fast"));
+    private final ByteBuffer stdin = ByteBuffer.wrap(new byte[0]);
+
+    @Test
+    public void testHedgeWins() {
+        ScenarioSshClient sshClient = sshClient();
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        executor.setInitialDelay(50L, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        Result result = executor.executeCommand("hostname", stdin, replicas);
+        assertTrue(System.currentTimeMillis() - start < 500L);
+        assertEquals("fast", result.stdoutAsText());
+        assertEquals(1, executor.getHedgeCount());
+        assertEquals(1, executor.getHedgeWinCount());
+        executor.close();
+    }
+
+    @Test
+    public void testNoHedgeWhenPrimaryIsFast() {
+        ScenarioSshClient sshClient = sshClient();
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        Result result = executor.executeCommand("hostname", stdin, Arrays.asList(replicas.get(1), replicas.get(0)));
+        assertEquals("fast", result.stdoutAsText());
+        assertEquals(0, executor.getHedgeCount());
+        executor.close();
+    }
+
+    @Test
+    public void testBudgetExhausted() {
+        ScenarioSshClient sshClient = sshClient();
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        executor.setInitialDelay(10L, TimeUnit.MILLISECONDS);
+        executor.setBudgetRatio(0.0);
+        Result result = executor.executeCommand("hostname", stdin, replicas);
+        assertEquals("slow", result.stdoutAsText());
+        assertEquals(0, executor.getHedgeCount());
+        assertEquals(1, executor.getHedgeDeniedCount());
+        executor.close();
+    }
+
+    @Test
+    public void testFailover() {
+        Scenario broken = scenario("broken", "uniform(1ms,2ms)");
+        broken.setFailureRate(1.0);
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(broken, scenario("fast", "1ms")));
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        Result result = executor.executeCommand("hostname", stdin, Arrays.asList(new UserAtHost("test", "broken"), replicas.get(1)));
+        assertEquals("fast", result.stdoutAsText());
+        assertEquals(1, executor.getFailoverCount());
+        executor.close();
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testAllFail() {
+        Scenario broken = scenario(".*", "1ms");
+        broken.setFailureRate(1.0);
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(broken));
+        new HedgingExecutor(sshClient).executeCommand("hostname", stdin, replicas);
+    }
+
+    @Test
+    public void testDelayFollowsLatencyPercentile() {
+        ScenarioSshClient sshClient = sshClient();
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        executor.setPercentile(50.0);
+        for (int i = 0; i < 25; i++) {
+            executor.executeCommand("hostname", stdin, Arrays.asList(replicas.get(1)));
+        }
+        assertTrue(executor.getHedgeDelayMillis() < 500L);
+        executor.close();
+    }
+
+    @Test
+    public void testDelayDoesNotDriftDownWhenHedgesWin() {
+        ScenarioSshClient sshClient = sshClient();
+        HedgingExecutor executor = new HedgingExecutor(sshClient);
+        executor.setInitialDelay(50L, TimeUnit.MILLISECONDS);
+        executor.setBudgetRatio(1.0);
+        for (int i = 0; i < 25; i++) {
+            assertEquals("fast", executor.executeCommand("hostname", stdin, replicas).stdoutAsText());
+        }
+        assertEquals(25, executor.getHedgeWinCount());
+        assertTrue(executor.getHedgeDelayMillis() >= 50L);
+        executor.close();
+    }
+
+    private static ScenarioSshClient sshClient() {
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario("slow", "1s"), scenario("fast", "5ms")));
+        return sshClient;
+    }
+
+    private static Scenario scenario(String host, String latency) {
+        Scenario scenario = new Scenario();
+        scenario.setHostPattern(host);
+        scenario.setStdout(host);
+        scenario.setLatency(latency);
+        return scenario;
+    }
+}
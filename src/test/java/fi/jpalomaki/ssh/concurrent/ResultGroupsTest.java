@@ -0,0 +1,52 @@
+package fi.jpalomaki.ssh.concurrent;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import fi.jpalomaki.ssh.*;
+
+public final class ResultGroupsTest {
+
+    @Test
+    public void testIdenticalResultsShareOutput() {
+        ResultGroups groups = new ResultGroups();
+        Result first = groups.add(new UserAtHost("test", "a"), new Result(0, "1.2.3\n", ""));
+        Result second = groups.add(new UserAtHost("test", "b"), new Result(0, "1.2.3\n", ""));
+        assertSame(first, second);
+        assertEquals("1.2.3\n", second.stdoutAsText());
+        assertEquals(6L, groups.getPayloadBytes());
+        assertEquals(6L, groups.getInternedBytes());
+    }
+
+    @Test
+    public void testGroupedByExitCodeAndOutput() {
+        ResultGroups groups = new ResultGroups();
+        List<UserAtHost> userAtHosts = new ArrayList<UserAtHost>();
+        for (String host : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+            userAtHosts.add(new UserAtHost("test", host));
+        }
+        groups.add(userAtHosts.get(0), new Result(1, "1.2.3\n", ""));
+        for (UserAtHost userAtHost : userAtHosts.subList(1, 4)) {
+            groups.add(userAtHost, new Result(0, "1.2.3\n", ""));
+        }
+        Result stderr = groups.add(userAtHosts.get(4), new Result(0, "1.2.3\n", "warning\n"));
+        groups.addFailure(userAtHosts.get(5), new SshClientException("Connection refused"));
+        List<ResultGroups.Group> sorted = groups.getGroups();
+        assertEquals(3, sorted.size());
+        assertEquals(userAtHosts.subList(1, 4), sorted.get(0).getUserAtHosts());
+        assertSame(sorted.get(0).getResult().stdout.array(), stderr.stdout.array()); // Payloads interned across groups
+        assertEquals(5, groups.getResultCount());
+        assertEquals("Connection refused", groups.getFailures().get(userAtHosts.get(5)));
+        assertEquals("6 hosts: 3 identical, 2 differ (2 groups), 1 failed", groups.summary());
+    }
+
+    @Test
+    public void testSha256() {
+        ResultGroups groups = new ResultGroups();
+        groups.add(new UserAtHost("test", "a"), new Result(0, "", ""));
+        ResultGroups.Group group = groups.getGroups().get(0);
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", group.getStdoutSha256());
+    }
+}
@@ -0,0 +1,55 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.util.Arrays;
+import java.util.Map;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+
+/**
+ * Measures handshake time and output throughput of each given cipher/mac/compression
+ * candidate against a local SSH server (see {@link JschSshClientTest} for assumptions),
+ * then lets {@link AdaptiveAlgorithms} pick one. Not run as part of the test suite.
+ *
+ * Usage: <code>AdaptiveAlgorithmsBenchmark [command] [executions] [candidates...]</code>,
+ * e.g. <code>"head -c 8M /dev/urandom" 10 aes128-ctr/hmac-md5/none aes256-ctr/hmac-sha2-256/none</code>.
+ * Add <code>com.jcraft:jzlib</code> to the classpath to try compression.
+ */
+public final class AdaptiveAlgorithmsBenchmark {
+
+    private static final UserAtHost USER_AT_HOST = new UserAtHost("test", "localhost");
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "head -c 8388608 /dev/urandom";
+        int executions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String[] candidates = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[] {
+            "aes128-ctr/hmac-sha1/none", "aes128-ctr/hmac-md5/none", "aes256-ctr/hmac-sha2-256/none", "aes128-cbc/hmac-sha1/none"
+        };
+        System.out.println("candidate                          wallMsPerExecution  measurements");
+        for (String candidate : candidates) {
+            AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+            algorithms.setCandidates(candidate);
+            algorithms.setSamples(executions);
+            long wallMillis = run(algorithms, command, executions);
+            Map<String, String> measurements = algorithms.measurementsFor(USER_AT_HOST);
+            System.out.println(String.format("%-34s %18d  %s", candidate, wallMillis / executions, measurements.get(candidate)));
+        }
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+        algorithms.setCandidates(candidates);
+        algorithms.setSamples(Math.max(1, executions / 2));
+        run(algorithms, command, candidates.length * Math.max(1, executions / 2));
+        System.out.println("adaptive choice: " + algorithms.preferredFor(USER_AT_HOST));
+    }
+
+    private static long run(AdaptiveAlgorithms algorithms, String command, int executions) {
+        Options options = new Options("30s", "0s", "64M", "1M", "StrictHostKeyChecking=no", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+        sshClient.setAdaptiveAlgorithms(algorithms);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < executions; i++) {
+            sshClient.executeCommand(command, USER_AT_HOST);
+        }
+        long wallMillis = System.currentTimeMillis() - start;
+        sshClient.close();
+        return wallMillis;
+    }
+}
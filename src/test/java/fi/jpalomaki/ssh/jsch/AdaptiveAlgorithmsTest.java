@@ -0,0 +1,129 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import fi.jpalomaki.ssh.UserAtHost;
+
+/**
+ * Tests for {@link AdaptiveAlgorithms}.
+ */
+public final class AdaptiveAlgorithmsTest {
+
+    private final UserAtHost userAtHost = new UserAtHost("test", "localhost");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedCandidate() {
+        new AdaptiveAlgorithms().setCandidates("aes128-ctr/hmac-sha1");
+    }
+
+    @Test
+    public void testCandidatePreferredOverDefaults() throws JSchException {
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+        algorithms.setCandidates("aes256-ctr/hmac-sha2-256/none");
+        Session session = newSession();
+        algorithms.apply(session, userAtHost);
+        assertTrue(session.getConfig("cipher.c2s").startsWith("aes256-ctr,aes128-ctr,"));
+        assertTrue(session.getConfig("mac.s2c").startsWith("hmac-sha2-256,hmac-md5,"));
+        assertEquals("none", session.getConfig("compression.s2c"));
+    }
+
+    @Test
+    public void testPrefersFastestCandidate() throws JSchException {
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+        algorithms.setCandidates("aes128-ctr/hmac-sha1/none", "aes256-ctr/hmac-sha2-256/none");
+        algorithms.setSamples(2);
+        for (int i = 0; i < 4; i++) {
+            assertNull(algorithms.preferredFor(userAtHost));
+            Session session = newSession();
+            algorithms.apply(session, userAtHost);
+            boolean fast = session.getConfig("cipher.s2c").startsWith("aes256-ctr");
+            algorithms.record(session, userAtHost, 1000000L, 1024 * 1024, fast ? 10000000L : 20000000L);
+        }
+        assertEquals("aes256-ctr/hmac-sha2-256/none", algorithms.preferredFor(userAtHost));
+        assertEquals(2, algorithms.measurementsFor(userAtHost).size());
+        Session session = newSession();
+        algorithms.apply(session, userAtHost);
+        assertTrue(session.getConfig("cipher.s2c").startsWith("aes256-ctr,"));
+        algorithms.forget(userAtHost);
+        assertNull(algorithms.preferredFor(userAtHost));
+    }
+
+    @Test
+    public void testUnmeasuredThroughputChargedPooledThroughput() throws JSchException {
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+        algorithms.setCandidates("aes128-ctr/hmac-sha1/none", "aes256-ctr/hmac-sha2-256/none");
+        algorithms.setSamples(1);
+        for (int i = 0; i < 2; i++) {
+            Session session = newSession();
+            algorithms.apply(session, userAtHost);
+            if (session.getConfig("cipher.s2c").startsWith("aes256-ctr")) {
+                algorithms.record(session, userAtHost, 900000L, 1024 * 1024, 10000000L); // Bulk transfer
+            } else {
+                algorithms.record(session, userAtHost, 1000000L, 1024, 1000L); // Too small to measure throughput
+            }
+        }
+        assertEquals("aes256-ctr/hmac-sha2-256/none", algorithms.preferredFor(userAtHost));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File store = File.createTempFile("algorithms", ".properties");
+        store.delete();
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms(store.getPath());
+        algorithms.setCandidates("aes128-ctr/hmac-md5/none");
+        algorithms.setSamples(1);
+        Session session = newSession();
+        algorithms.apply(session, userAtHost);
+        algorithms.record(session, userAtHost, 1000000L, 0L, 0L);
+        algorithms.flush();
+        assertEquals("aes128-ctr/hmac-md5/none", new AdaptiveAlgorithms(store.getPath()).preferredFor(userAtHost));
+        store.delete();
+    }
+
+    @Test
+    public void testConcurrentDecisionsAllPersisted() throws Exception {
+        File store = File.createTempFile("algorithms", ".properties");
+        store.delete();
+        final AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms(store.getPath());
+        algorithms.setCandidates("aes128-ctr/hmac-md5/none");
+        algorithms.setSamples(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final UserAtHost host = new UserAtHost("test", "host" + i);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Session session = newSession();
+                        algorithms.apply(session, host);
+                        algorithms.record(session, host, 1000000L, 0L, 0L);
+                    } catch (JSchException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        algorithms.flush();
+        AdaptiveAlgorithms reloaded = new AdaptiveAlgorithms(store.getPath());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("aes128-ctr/hmac-md5/none", reloaded.preferredFor(new UserAtHost("test", "host" + i)));
+        }
+        store.delete();
+    }
+
+    private static Session newSession() throws JSchException {
+        return new JSch().getSession("test", "localhost");
+    }
+}
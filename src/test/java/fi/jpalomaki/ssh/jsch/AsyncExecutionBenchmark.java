@@ -0,0 +1,114 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import fi.jpalomaki.ssh.*;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+
+/**
+ * Compares thread count and heap usage of blocking (thread-per-call) and asynchronous
+ * execution with the given numbers of concurrent sessions against a local SSH server
+ * (see {@link JschSshClientTest} for assumptions). Commands that fail (e.g. because the server
+ * refuses connections under load) are counted, so that runs can be compared honestly. Not run as
+ * part of the test suite.
+ *
+ * Usage: <code>AsyncExecutionBenchmark [sessions...]</code>, e.g. <code>200 500 1000</code>.
+ */
+public final class AsyncExecutionBenchmark {
+
+    private static final UserAtHost USER_AT_HOST = new UserAtHost("test", "localhost");
+    private static final String COMMAND = "sleep 10s";
+
+    public static void main(String[] args) throws Exception {
+        int[] sessionCounts = args.length > 0 ? new int[args.length] : new int[] {200, 500, 1000};
+        for (int i = 0; i < args.length; i++) {
+            sessionCounts[i] = Integer.parseInt(args[i]);
+        }
+        System.out.println("mode      sessions  failed  peakThreads  peakHeapMiB  wallMs");
+        for (int sessions : sessionCounts) {
+            run("blocking", sessions);
+            run("async", sessions);
+        }
+    }
+
+    private static void run(String mode, int sessions) throws Exception {
+        System.gc();
+        Options options = new Options("30s", "0s", "1K", "1K", "StrictHostKeyChecking=no", false);
+        final JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+        sshClient.setConnectThreads(32);
+        final AtomicInteger failed = new AtomicInteger();
+        Sampler sampler = new Sampler();
+        sampler.start();
+        long start = System.currentTimeMillis();
+        if (mode.equals("async")) {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(sessions);
+            for (int i = 0; i < sessions; i++) {
+                futures.add(sshClient.executeCommandAsync(COMMAND, ByteBuffer.wrap(new byte[0]), USER_AT_HOST));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failed.incrementAndGet();
+                }
+            }
+        } else {
+            List<Thread> threads = new ArrayList<Thread>(sessions);
+            for (int i = 0; i < sessions; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            sshClient.executeCommand(COMMAND, USER_AT_HOST);
+                        } catch (SshClientException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        long wallMillis = System.currentTimeMillis() - start;
+        sampler.interrupt();
+        sampler.join();
+        sshClient.close();
+        System.out.println(String.format("%-9s %8d  %6d  %11d  %11d  %6d",
+                mode, sessions, failed.get(), sampler.peakThreads, sampler.peakHeapBytes / (1024 * 1024), wallMillis));
+    }
+
+    private static final class Sampler extends Thread {
+
+        private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        private volatile int peakThreads = 0;
+        private volatile long peakHeapBytes = 0L;
+
+        Sampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                peakThreads = Math.max(peakThreads, threadBean.getThreadCount());
+                peakHeapBytes = Math.max(peakHeapBytes, memoryBean.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
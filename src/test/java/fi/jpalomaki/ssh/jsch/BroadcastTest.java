@@ -0,0 +1,76 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+
+/**
+ * Tests for {@link Broadcast}. Tests assume user "test" is available on the local host
+ * (see {@link JschSshClientTest}).
+ */
+public final class BroadcastTest {
+
+    private final UserAtHost userAtHost = new UserAtHost("test", "localhost");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedHostRejected() {
+        Broadcast broadcast = new Broadcast(new JschSshClient("src/test/resources/id_rsa_test", "ankka"), 2);
+        try {
+            broadcast.send("cat > /dev/null", ByteBuffer.wrap(new byte[1]), Arrays.asList(userAtHost, userAtHost));
+        } finally {
+            broadcast.close();
+        }
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+        File file = File.createTempFile("broadcast", ".bin");
+        file.deleteOnExit();
+        byte[] content = new byte[1000000];
+        new Random(1L).nextBytes(content);
+        Files.write(file.toPath(), content);
+        Broadcast broadcast = new Broadcast(newSshClient(), 2);
+        List<UserAtHost> userAtHosts = Arrays.asList(userAtHost,
+                new UserAtHost("test", "localhost", 2020), new UserAtHost("test", "127.0.0.1"));
+        Broadcast.Transfers transfers = broadcast.send("wc -c; echo done >&2", file.toPath(), userAtHosts);
+        assertEquals(content.length, transfers.getSize());
+        for (Broadcast.Transfer transfer : transfers.getTransfers().values()) {
+            Result result = transfer.getResult().get();
+            assertEquals(0, result.exitCode);
+            assertEquals(String.valueOf(content.length), result.stdoutAsText().trim());
+            assertEquals("done\n", result.stderrAsText()); // Checksum taken out
+            assertEquals(transfers.getSha256(), transfer.getRemoteSha256());
+            assertTrue(transfer.isVerified());
+            assertEquals(1.0, transfer.getProgress(), 0.0);
+        }
+        assertEquals(3L * content.length, transfers.getBytesSent());
+        broadcast.close();
+    }
+
+    @Test
+    public void testPartiallyReceivedContentNotVerified() throws Exception {
+        byte[] content = new byte[1000000];
+        new Random(1L).nextBytes(content);
+        Broadcast broadcast = new Broadcast(newSshClient(), 2);
+        Broadcast.Transfers transfers = broadcast.send("head -c 1000 > /dev/null; exit 3", ByteBuffer.wrap(content), Arrays.asList(userAtHost));
+        Broadcast.Transfer transfer = transfers.getTransfers().get(userAtHost);
+        Result result = transfer.getResult().get();
+        assertEquals(result.stderrAsText(), 3, result.exitCode);
+        assertNotNull(result.stderrAsText(), transfer.getRemoteSha256());
+        assertFalse(transfer.isVerified());
+        broadcast.close();
+    }
+
+    private static JschSshClient newSshClient() {
+        Options options = new Options("0s", "0s", "64K", "64K", "StrictHostKeyChecking=no", false);
+        return new JschSshClient("src/test/resources/id_rsa_test", "ankka", "/dev/null", options);
+    }
+}
@@ -0,0 +1,71 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.jsch.DirectorySync.Report;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+
+/**
+ * Reports bytes sent by {@link DirectorySync} for a full sync and for a 1% change of a
+ * config-like tree, against a local SSH server (see {@link JschSshClientTest} for
+ * assumptions). Not run as part of the test suite.
+ *
+ * Usage: <code>DirectorySyncBenchmark [smallFiles] [largeFileMiB]</code>, by default
+ * 500 files of 16 KiB and one 32 MiB file. The 1% change touches 1% of the small files
+ * and 1% of the blocks of the large file. The second unchanged sync shows the effect of
+ * remote hashes known from the previous sync.
+ */
+public final class DirectorySyncBenchmark {
+
+    private static final UserAtHost USER_AT_HOST = new UserAtHost("test", "localhost");
+
+    public static void main(String[] args) throws Exception {
+        int smallFiles = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int largeMiB = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        Random random = new Random(1L);
+        Path local = Files.createTempDirectory("sync-benchmark");
+        for (int i = 0; i < smallFiles; i++) {
+            Path file = local.resolve("conf.d/" + (i % 10) + "/file" + i + ".conf");
+            Files.createDirectories(file.getParent());
+            Files.write(file, randomBytes(random, 16 * 1024));
+        }
+        byte[] large = randomBytes(random, largeMiB * 1024 * 1024);
+        Files.write(local.resolve("large.bin"), large);
+        String remote = "/tmp/sync-benchmark-" + System.nanoTime();
+        Options options = new Options("30s", "0s", "16M", "1M", "StrictHostKeyChecking=no", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+        DirectorySync sync = new DirectorySync(sshClient);
+        System.out.println("sync           bytesTotal   bytesSent  whole  patched  remoteHashed  wallMs");
+        print("full", sync, local, remote);
+        print("unchanged", sync, local, remote);
+        print("unchanged", sync, local, remote); // Remote hashes known from the previous sync
+        for (int i = 0; i < smallFiles / 100; i++) {
+            Files.write(local.resolve("conf.d/" + (i % 10) + "/file" + i + ".conf"), randomBytes(random, 16 * 1024));
+        }
+        int blockSize = 256 * 1024;
+        int blocks = large.length / blockSize;
+        for (int i = 0; i < Math.max(1, blocks / 100); i++) {
+            large[random.nextInt(large.length)] ^= 1;
+        }
+        Files.write(local.resolve("large.bin"), large);
+        print("1% changed", sync, local, remote);
+        sshClient.executeCommand("rm -rf " + remote, USER_AT_HOST);
+        sshClient.close();
+    }
+
+    private static void print(String name, DirectorySync sync, Path local, String remote) {
+        long start = System.currentTimeMillis();
+        Report report = sync.sync(local, remote, USER_AT_HOST);
+        long millis = System.currentTimeMillis() - start;
+        System.out.println(String.format("%-12s %12d %11d %6d %8d %13d %7d", name, report.getBytesTotal(), report.getBytesSent(),
+                report.getFilesSent(), report.getFilesPatched(), report.getRemoteFilesHashed(), millis));
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import fi.jpalomaki.ssh.SshClient;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.jsch.DirectorySync.RemoteFile;
+
+/**
+ * Tests for {@link DirectorySync}. Tests that sync against a server assume user "test" is available
+ * on the local host (see {@link JschSshClientTest}).
+ */
+public final class DirectorySyncTest {
+
+    private final UserAtHost userAtHost = new UserAtHost("test", "localhost");
+
+    private static final String HASH_A = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String HASH_B = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Test
+    public void testParseManifest() {
+        String output = "1700000005\n" +
+                "0 1700000000 ./a.txt\n" +
+                "4 1700000005 ./dir/with space\n" +
+                "--\n" +
+                HASH_A + "  ./a.txt\n" +
+                HASH_B + "  ./dir/with space\n" +
+                "-- end\n";
+        Map<String, RemoteFile> files = DirectorySync.parseManifest(output, new HashMap<String, RemoteFile>());
+        assertEquals(Arrays.asList("a.txt", "dir/with space"), Arrays.asList(files.keySet().toArray()));
+        assertEquals(4L, files.get("dir/with space").size);
+        assertEquals(1700000005L, files.get("dir/with space").mtimeSeconds);
+        assertEquals(HASH_B, files.get("dir/with space").sha256);
+        assertTrue(files.get("a.txt").hashed);
+        assertTrue(files.get("a.txt").settled);
+        assertFalse(files.get("dir/with space").settled); // Modified in the second it was listed
+    }
+
+    @Test
+    public void testParseManifestWithKnownFiles() {
+        Map<String, RemoteFile> known = new HashMap<String, RemoteFile>();
+        known.put("a.txt", new RemoteFile(0L, 1700000000L, HASH_A, true, true));
+        known.put("b.txt", new RemoteFile(4L, 1700000000L, HASH_A, true, true));
+        assertEquals("0 1700000000 ./a.txt\n", DirectorySync.knownFiles(Collections.singletonMap("a.txt", known.get("a.txt"))));
+        String output = "1700000010\n" +
+                "0 1700000000 ./a.txt\n" +
+                "4 1700000009 ./b.txt\n" +
+                "--\n" +
+                HASH_B + "  ./b.txt\n" +
+                "-- end\n";
+        Map<String, RemoteFile> files = DirectorySync.parseManifest(output, known);
+        assertEquals(HASH_A, files.get("a.txt").sha256);
+        assertFalse(files.get("a.txt").hashed);
+        assertEquals(HASH_B, files.get("b.txt").sha256);
+        assertTrue(files.get("b.txt").hashed);
+    }
+
+    @Test
+    public void testParseEmptyManifest() {
+        assertTrue(DirectorySync.parseManifest("1700000000\n--\n-- end\n", new HashMap<String, RemoteFile>()).isEmpty());
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testTruncatedManifest() {
+        DirectorySync.parseManifest("1700000000\n0 1700000000 ./a.txt\n--\n" + HASH_A.substring(0, 10), new HashMap<String, RemoteFile>());
+    }
+
+    @Test
+    public void testParseBlockHashes() {
+        List<List<String>> files = DirectorySync.parseBlockHashes(HASH_A + "  -\n" + HASH_B + "  -\n--\n--\n" + HASH_B + "  -\n--\n");
+        assertEquals(3, files.size());
+        assertEquals(Arrays.asList(HASH_A, HASH_B), files.get(0));
+        assertTrue(files.get(1).isEmpty());
+        assertEquals(Arrays.asList(HASH_B), files.get(2));
+    }
+
+    @Test
+    public void testCommandsQuotePaths() {
+        assertTrue(DirectorySync.manifestCommand("/tmp/it's").startsWith("cd '/tmp/it'\\''s'"));
+        assertTrue(DirectorySync.applyCommand("/tmp/it's").startsWith("mkdir -p '/tmp/it'\\''s'"));
+    }
+
+    @Test
+    public void testDirectorySync() throws Exception {
+        Path local = Files.createTempDirectory("sync");
+        Files.createDirectories(local.resolve("conf.d"));
+        Files.write(local.resolve("conf.d/it's.conf"), "a=1\n".getBytes());
+        Files.write(local.resolve("keep.txt"), "unchanged\n".getBytes());
+        Files.write(local.resolve("gone.txt"), "deleted\n".getBytes());
+        Files.write(local.resolve(".sync.conf"), "user file\n".getBytes()); // Not a staging directory
+        byte[] large = new byte[3 * 1024 * 1024 + 100];
+        new Random(1L).nextBytes(large);
+        Files.write(local.resolve("large.bin"), large);
+        long now = System.currentTimeMillis();
+        for (String file : Arrays.asList("conf.d/it's.conf", "keep.txt", "gone.txt", "large.bin", ".sync.conf")) {
+            setMtime(local.resolve(file), now - 60000L); // Settled, so that remote hashes are cached
+        }
+        String remote = "/tmp/sync-test-" + System.nanoTime();
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        DirectorySync sync = new DirectorySync(sshClient);
+        sync.setDelete(true);
+        DirectorySync.Report first = sync.sync(local, remote, userAtHost);
+        assertEquals(5, first.getFilesSent());
+        assertEquals(0, first.getRemoteFilesHashed());
+        Files.write(local.resolve("conf.d/it's.conf"), "a=2\n".getBytes()); // Same size
+        setMtime(local.resolve("conf.d/it's.conf"), now - 30000L);
+        large[2 * 1024 * 1024] ^= 1; // One block
+        Files.write(local.resolve("large.bin"), large);
+        setMtime(local.resolve("large.bin"), now - 30000L);
+        Files.delete(local.resolve("gone.txt"));
+        DirectorySync.Report second = sync.sync(local, remote, userAtHost);
+        assertEquals(1, second.getFilesSent());
+        assertEquals(1, second.getFilesPatched());
+        assertEquals(1, second.getFilesDeleted());
+        assertEquals(2, second.getFilesUnchanged());
+        assertEquals(5, second.getRemoteFilesHashed());
+        assertTrue(second.getBytesSent() < first.getBytesSent() / 4);
+        assertRemoteHashes(sshClient, remote, local, "conf.d/it's.conf", "keep.txt", "large.bin", ".sync.conf");
+        assertEquals("", sshClient.executeCommand("ls " + remote + "/gone.txt 2>/dev/null", userAtHost).stdoutAsText());
+        DirectorySync.Report third = sync.sync(local, remote, userAtHost);
+        assertEquals(0, third.getBytesSent());
+        assertEquals(2, third.getRemoteFilesHashed()); // Changed by the previous sync, unchanged one known
+        assertTrue(sync.sync(local, remote, userAtHost).getRemoteFilesHashed() <= 1); // Patched one, if listed in the second it was patched
+        large = Arrays.copyOf(large, large.length - 50);
+        Files.write(local.resolve("large.bin"), large);
+        assertEquals(1, sync.sync(local, remote, userAtHost).getFilesPatched());
+        assertRemoteHashes(sshClient, remote, local, "conf.d/it's.conf", "keep.txt", "large.bin", ".sync.conf");
+        assertEquals(8, sync.getLocalHashCount());
+        sshClient.executeCommand("rm -rf " + remote, userAtHost);
+    }
+
+    private void assertRemoteHashes(SshClient sshClient, String remote, Path local, String... files) throws Exception {
+        for (String file : files) {
+            String command = "sha256sum '" + remote + "/" + file.replace("'", "'\\''") + "'";
+            String sha256 = sshClient.executeCommand(command, userAtHost).stdoutAsText();
+            assertEquals(file, sha256(Files.readAllBytes(local.resolve(file))), sha256.substring(0, 64));
+        }
+    }
+
+    private static void setMtime(Path file, long millis) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(millis));
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import org.junit.Test;
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.KeyPair;
+import fi.jpalomaki.ssh.SshClientException;
+import fi.jpalomaki.ssh.UserAtHost;
+
+/**
+ * Tests for {@link IdentityStore}.
+ */
+public final class IdentityStoreTest {
+
+    @Test(expected = SshClientException.class)
+    public void testNonExistentPrivateKeyFile() {
+        new IdentityStore().addIdentity("test", "src/test/resources/id_rsa_testos", "ankka");
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testIncorrectPrivateKeyPassphrase() {
+        new IdentityStore().addIdentity("test", "src/test/resources/id_rsa_test", "ankka2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouteToUnknownIdentity() {
+        new IdentityStore().addRoute("*", "test");
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testNoIdentity() {
+        new IdentityStore().identityFor(new UserAtHost("test", "localhost"));
+    }
+
+    @Test
+    public void testRouting() {
+        IdentityStore identityStore = new IdentityStore();
+        identityStore.addIdentity("default", "src/test/resources/id_rsa_test", "ankka");
+        identityStore.addIdentity("prod", "src/test/resources/id_rsa_test_nopass", null);
+        identityStore.addIdentity("deploy", "src/test/resources/id_rsa_test_nopass", null);
+        identityStore.addRoute("deploy@*", "deploy");
+        identityStore.addRoute("*.prod.example.com", "prod");
+        identityStore.addRoute("db?.example.com", "prod");
+        assertEquals("default", identityStore.identityFor(new UserAtHost("test", "localhost")).getName());
+        assertEquals("prod", identityStore.identityFor(new UserAtHost("test", "web1.PROD.example.com")).getName());
+        assertEquals("prod", identityStore.identityFor(new UserAtHost("test", "db1.example.com")).getName());
+        assertEquals("default", identityStore.identityFor(new UserAtHost("test", "db10.example.com")).getName());
+        assertEquals("deploy", identityStore.identityFor(new UserAtHost("deploy", "web1.prod.example.com")).getName());
+        identityStore.setDefaultIdentity("prod");
+        assertEquals("prod", identityStore.identityFor(new UserAtHost("test", "localhost")).getName());
+        assertFalse(identityStore.identityFor(new UserAtHost("test", "localhost")).isEncrypted());
+        identityStore.close();
+    }
+
+    @Test
+    public void testKeysWipedOnClose() throws Exception {
+        IdentityStore identityStore = new IdentityStore();
+        identityStore.addIdentity("test", "src/test/resources/id_rsa_test", "ankka");
+        Identity identity = identityStore.identityFor(new UserAtHost("test", "localhost"));
+        Field keyPairField = identity.getClass().getDeclaredField("keyPair");
+        keyPairField.setAccessible(true);
+        KeyPair keyPair = (KeyPair)keyPairField.get(identity);
+        assertEquals(KeyPair.RSA, keyPair.getKeyType());
+        identityStore.close();
+        int wiped = 0;
+        for (Class<?> type = keyPair.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (field.getType() == byte[].class && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    byte[] bytes = (byte[])field.get(keyPair);
+                    if (bytes != null) {
+                        for (byte b : bytes) {
+                            assertEquals("Not wiped: " + field.getName(), 0, b);
+                        }
+                        wiped++;
+                    }
+                }
+            }
+        }
+        assertTrue(wiped >= 6); // At least the private exponent, primes, CRT parameters
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testClosed() {
+        IdentityStore identityStore = new IdentityStore();
+        identityStore.addIdentity("test", "src/test/resources/id_rsa_test_nopass", null);
+        identityStore.close();
+        identityStore.identityFor(new UserAtHost("test", "localhost"));
+    }
+}
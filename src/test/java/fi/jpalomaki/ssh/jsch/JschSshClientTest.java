@@ -2,8 +2,21 @@ package fi.jpalomaki.ssh.jsch;
 
 import static org.junit.Assert.*;
 import java.io.File;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import fi.jpalomaki.ssh.*;
 import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
@@ -140,6 +153,261 @@ public final class JschSshClientTest {
         System.out.println(result.stderrAsText());
     }
 
+    @Test(timeout = 5000)
+    public void testEarlyTermination() {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        ByteBuffer stdin = ByteBuffer.wrap(new byte[0]);
+        OutputCondition started = OutputCondition.matches("^Started");
+        Result result = sshClient.executeCommand("echo Starting; sleep 1s; echo Started; sleep 60s", stdin, userAtHost, started);
+        assertTrue(result.earlyTerminated);
+        assertEquals("Starting\nStarted", result.stdoutAsText().trim());
+    }
+
+    @Test(timeout = 5000)
+    public void testAsyncExecution() throws Exception {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(sshClient.executeCommandAsync("sleep 1s; echo " + i, ByteBuffer.wrap(new byte[0]), userAtHost));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), futures.get(i).get().stdoutAsText().trim());
+        }
+        sshClient.close();
+    }
+
+    @Test(expected = CancellationException.class, timeout = 5000)
+    public void testAsyncCancellation() throws Exception {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        Future<Result> future = sshClient.executeCommandAsync("sleep 60s", ByteBuffer.wrap(new byte[0]), userAtHost);
+        Thread.sleep(1000L);
+        assertTrue(future.cancel(true));
+        future.get();
+    }
+
+    @Test(timeout = 5000)
+    public void testCancelCompletesImmediately() throws Exception {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        Future<Result> future = sshClient.executeCommandAsync("sleep 60s", ByteBuffer.wrap(new byte[0]), userAtHost);
+        Thread.sleep(1000L);
+        assertTrue(future.cancel(true));
+        assertTrue(future.isDone());
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(true));
+        try {
+            future.get(0L, TimeUnit.MILLISECONDS);
+            fail("Expected cancellation");
+        } catch (CancellationException e) {
+            // Expected
+        }
+        sshClient.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testIdleClientsReleaseThreads() throws Exception {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        for (int i = 0; i < 20; i++) {
+            SshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null);
+            assertEquals(0, sshClient.executeCommand("true", userAtHost).exitCode); // Not closed
+        }
+        Thread.sleep(JschSshClient.IDLE_THREAD_KEEP_ALIVE + 1000L);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!before.contains(thread) && thread.getName().matches("jsch-(event-loop|connect)-.*")) {
+                fail("Idle client thread still alive: " + thread.getName());
+            }
+        }
+    }
+
+    @Test
+    public void testProxyJump() throws Exception {
+        Options options = new Options("5s", "0s", "1K", "1K", "StrictHostKeyChecking=no;ProxyJump=localhost:2020", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(sshClient.executeCommandAsync("echo " + i, ByteBuffer.wrap(new byte[0]), userAtHost));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(String.valueOf(i), futures.get(i).get().stdoutAsText().trim());
+        }
+        sshClient.close();
+    }
+
+    @Test
+    public void testPooledLocalPortForward() throws Exception {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        LocalPortForward tunnel = sshClient.forwardLocalPort(userAtHost, "localhost", 2020);
+        LocalPortForward sameTunnel = sshClient.forwardLocalPort(userAtHost, "localhost", 2020);
+        assertEquals(tunnel.getLocalPort(), sameTunnel.getLocalPort());
+        Socket socket = new Socket("localhost", tunnel.getLocalPort());
+        String banner = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+        socket.close();
+        assertTrue(banner.startsWith("SSH-2.0-"));
+        assertEquals(1, tunnel.getConnectionCount());
+        assertTrue(sameTunnel.getBytesReceived() > 0);
+        tunnel.close();
+        sameTunnel.close();
+        sshClient.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testTunnelIdleTimeoutCountsFromLastRelease() throws Exception {
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        sshClient.setTunnelIdleTimeout("1s");
+        long idleTimeout = TimeUnit.SECONDS.toNanos(1L);
+        LocalPortForward tunnel = sshClient.forwardLocalPort(userAtHost, "localhost", 2020);
+        int localPort = tunnel.getLocalPort();
+        tunnel.close(); // First teardown scheduled
+        tunnel = sshClient.forwardLocalPort(userAtHost, "localhost", 2020);
+        assertEquals(localPort, tunnel.getLocalPort());
+        Thread.sleep(500L); // Referenced past half of the first teardown delay
+        long lastRelease = System.nanoTime();
+        tunnel.close(); // Second teardown replaces the first one
+        long deadline = lastRelease + TimeUnit.SECONDS.toNanos(10L);
+        while (sshClient.tunnelCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, sshClient.tunnelCount());
+        assertTrue(System.nanoTime() - lastRelease >= idleTimeout); // Torn down no earlier than the timeout from the last release
+        tunnel = sshClient.forwardLocalPort(userAtHost, "localhost", 2020);
+        assertNotEquals(localPort, tunnel.getLocalPort());
+        tunnel.close();
+        sshClient.close();
+    }
+
+    @Test
+    public void testIdentityStore() {
+        IdentityStore identityStore = new IdentityStore();
+        identityStore.addIdentity("nopass", "src/test/resources/id_rsa_test_nopass", null);
+        identityStore.addIdentity("test", "src/test/resources/id_rsa_test", "ankka");
+        identityStore.addRoute("test@localhost", "test");
+        JschSshClient sshClient = new JschSshClient(identityStore, "~/.ssh/known_hosts", new Options());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", sshClient.executeCommand("echo ok", userAtHost).stdoutAsText().trim());
+        }
+        sshClient.close();
+        identityStore.close();
+    }
+
+    @Test
+    public void testAdaptiveAlgorithms() {
+        AdaptiveAlgorithms algorithms = new AdaptiveAlgorithms();
+        algorithms.setCandidates("aes128-ctr/hmac-sha1/none", "aes256-ctr/hmac-sha2-256/none");
+        algorithms.setSamples(1);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        sshClient.setAdaptiveAlgorithms(algorithms);
+        for (int i = 0; i < 3; i++) {
+            Result result = sshClient.executeCommand("head -c 100000 /dev/zero", userAtHost);
+            assertEquals(100000, result.stdout.remaining());
+        }
+        assertNotNull(algorithms.preferredFor(userAtHost));
+        assertEquals(2, algorithms.measurementsFor(userAtHost).size());
+    }
+
+    @Test
+    public void testOutputCompression() {
+        OutputCompression compression = OutputCompression.gzip();
+        ByteBuffer stdin = ByteBuffer.wrap("it's".getBytes());
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        String command = "cat -; seq 1 20000; echo oops >&2; exit 3";
+        Result result = sshClient.executeCommand(command, stdin, userAtHost, compression);
+        assertEquals(3, result.exitCode);
+        assertTrue(result.stdoutAsText().startsWith("it's1\n2\n"));
+        assertTrue(result.stdoutAsText().endsWith("\n20000\n"));
+        assertEquals("oops\n", result.stderrAsText());
+        assertTrue(compression.getBytesReceived() < compression.getBytesDecompressed() / 2);
+    }
+
+    @Test
+    public void testDirectBufferStdin() {
+        ByteBuffer stdin = ByteBuffer.allocateDirect(6);
+        stdin.put("secret".getBytes()).flip();
+        SshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        assertEquals("secret", sshClient.executeCommand("cat -", stdin, userAtHost).stdoutAsText());
+        assertEquals(6, stdin.remaining());
+    }
+
+    @Test
+    public void testStdinFromBufferPosition() {
+        ByteBuffer stdin = ByteBuffer.wrap("..secret..".getBytes());
+        stdin.position(2).limit(8);
+        SshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        assertEquals("secret", sshClient.executeCommand("cat -", stdin, userAtHost).stdoutAsText());
+        assertEquals(2, stdin.position());
+        assertEquals(8, stdin.limit());
+    }
+
+    @Test(timeout = 10000)
+    public void testFailingStdinStreamFailsExecution() {
+        InputStream stdin = new SequenceInputStream(new ByteArrayInputStream("partial".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("File shrank");
+            }
+        });
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        try {
+            sshClient.executeCommand("cat - > /dev/null", stdin, userAtHost); // Returns only if stdin is ended
+            fail();
+        } catch (SshClientException e) {
+            assertEquals("File shrank", e.getCause().getMessage());
+        }
+        sshClient.close();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        Options options = new Options("5s", "0s", "64K", "64K", "StrictHostKeyChecking=no", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka", "/dev/null", options);
+        sshClient.setKeepAliveInterval("100ms");
+        assertEquals(2, sshClient.warmUp(Arrays.asList(userAtHost), 2));
+        assertEquals(2, sshClient.getWarmSessionCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", sshClient.executeCommand("echo ok", userAtHost).stdoutAsText().trim());
+            assertEquals(2, sshClient.getWarmSessionCount()); // Handed back
+        }
+        assertEquals(2, sshClient.getWarmConnectCount()); // Reused, not replaced
+        sshClient.executeCommand("echo ok", new UserAtHost("test", "localhost", 2020));
+        assertEquals(3, sshClient.getWarmHitCount());
+        assertEquals(1, sshClient.getWarmMissCount());
+        assertEquals(0.75, sshClient.getWarmHitRatio(), 0.0);
+        Thread.sleep(350L);
+        assertEquals(2, sshClient.getWarmSessionCount());
+        assertTrue(sshClient.getKeepAliveCount() >= 2);
+        sshClient.close();
+        assertEquals(0, sshClient.getWarmSessionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testLostWarmSessionReplaced() throws Exception {
+        Options options = new Options("5s", "500ms", "64K", "64K", "StrictHostKeyChecking=no", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka", "/dev/null", options);
+        assertEquals(1, sshClient.warmUp(Arrays.asList(userAtHost), 1));
+        try {
+            sshClient.executeCommand("sleep 5", userAtHost);
+            fail("Expected timeout");
+        } catch (SessionTimeoutException e) {
+            // Expected, session disconnected rather than handed back
+        }
+        while (sshClient.getWarmSessionCount() < 1) {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, sshClient.getWarmConnectCount());
+        assertEquals(1, sshClient.getWarmHitCount());
+        sshClient.close();
+    }
+
+    @Test
+    public void testRacingSocketFactory() {
+        RacingSocketFactory socketFactory = new RacingSocketFactory();
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
+        sshClient.setSocketFactory(socketFactory);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", sshClient.executeCommand("echo ok", userAtHost).stdoutAsText().trim());
+        }
+        assertEquals(1, socketFactory.getResolutionCount());
+        assertEquals(3, socketFactory.getConnectCount());
+    }
+
     @Test
     public void testUname() {
         SshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test", "ankka");
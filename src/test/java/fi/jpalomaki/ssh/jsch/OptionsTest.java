@@ -4,9 +4,11 @@ import org.junit.Test;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
+import fi.jpalomaki.ssh.UserAtHost;
 import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
 
 public final class OptionsTest {
@@ -76,6 +78,25 @@ public final class OptionsTest {
         new Options("1s", "5s", "1G", "1G", "a;b", false);
     }
     
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedProxyJump() {
+        new Options("1s", "5s", "1K", "1K", "ProxyJump=user@bastion:port", false);
+    }
+
+    @Test
+    public void testProxyJump() {
+        Options options = new Options("1s", "5s", "1K", "1K", "ProxyJump=admin@bastion:2222, inner;TCPKeepAlive=no", false);
+        assertEquals(Collections.singletonMap("TCPKeepAlive", "no"), options.sshConfig);
+        List<UserAtHost> jumpHosts = options.jumpHostsFor(new UserAtHost("test", "target"));
+        assertEquals(2, jumpHosts.size());
+        assertEquals("admin", jumpHosts.get(0).user);
+        assertEquals("bastion", jumpHosts.get(0).host);
+        assertEquals(2222, jumpHosts.get(0).port);
+        assertEquals("test", jumpHosts.get(1).user);
+        assertEquals("inner", jumpHosts.get(1).host);
+        assertEquals(22, jumpHosts.get(1).port);
+    }
+
     @Test
     public void testDefaults() {
         Options defaults = new Options();
@@ -85,6 +106,7 @@ public final class OptionsTest {
         assertEquals(1024L * 1024, defaults.maxStderrBytes);
         assertEquals(Collections.singletonMap("StrictHostKeyChecking", "yes"), defaults.sshConfig);
         assertEquals(false, defaults.allocatePty);
+        assertTrue(defaults.jumpHosts.isEmpty());
     }
     
     @Test
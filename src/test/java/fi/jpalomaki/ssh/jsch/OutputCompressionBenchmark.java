@@ -0,0 +1,49 @@
+package fi.jpalomaki.ssh.jsch;
+
+import java.nio.ByteBuffer;
+import fi.jpalomaki.ssh.Result;
+import fi.jpalomaki.ssh.UserAtHost;
+import fi.jpalomaki.ssh.jsch.JschSshClient.Options;
+
+/**
+ * Compares bytes transferred and wall time of plain and gzip-compressed output capture
+ * against a local SSH server (see {@link JschSshClientTest} for assumptions). Not run
+ * as part of the test suite.
+ *
+ * Usage: <code>OutputCompressionBenchmark [command] [executions]</code>, where the
+ * default command prints a 40 MiB JSON-like listing.
+ */
+public final class OutputCompressionBenchmark {
+
+    private static final UserAtHost USER_AT_HOST = new UserAtHost("test", "localhost");
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] :
+            "seq 1 1000000 | sed 's/.*/{\"id\": &, \"path\": \"\\/var\\/log\\/app\\/&.log\", \"status\": \"ok\"}/'";
+        int executions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Options options = new Options("30s", "0s", "256M", "1M", "StrictHostKeyChecking=no", false);
+        JschSshClient sshClient = new JschSshClient("src/test/resources/id_rsa_test_nopass", null, "/dev/null", options);
+        System.out.println("mode    stdoutBytes  bytesTransferred  wallMsPerExecution");
+        for (int round = 0; round < 2; round++) { // First round warms up
+            long start = System.currentTimeMillis();
+            Result result = null;
+            for (int i = 0; i < executions; i++) {
+                result = sshClient.executeCommand(command, USER_AT_HOST);
+            }
+            long plainMillis = (System.currentTimeMillis() - start) / executions;
+            long stdoutBytes = result.stdout.remaining();
+            start = System.currentTimeMillis();
+            OutputCompression compression = OutputCompression.gzip();
+            for (int i = 0; i < executions; i++) {
+                sshClient.executeCommand(command, ByteBuffer.wrap(new byte[0]), USER_AT_HOST, compression);
+            }
+            long gzipMillis = (System.currentTimeMillis() - start) / executions;
+            if (round > 0) {
+                System.out.println(String.format("plain %13d  %16d  %18d", stdoutBytes, stdoutBytes, plainMillis));
+                System.out.println(String.format("gzip  %13d  %16d  %18d", compression.getBytesDecompressed() / executions,
+                        compression.getBytesReceived() / executions, gzipMillis));
+            }
+        }
+        sshClient.close();
+    }
+}
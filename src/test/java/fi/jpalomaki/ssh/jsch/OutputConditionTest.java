@@ -0,0 +1,75 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import fi.jpalomaki.ssh.jsch.OutputCondition.Matcher;
+import fi.jpalomaki.ssh.jsch.OutputCondition.Source;
+
+public final class OutputConditionTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyRegex() {
+        OutputCondition.matches(" ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyBytes() {
+        OutputCondition.contains(new byte[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroLines() {
+        OutputCondition.lines(0);
+    }
+
+    @Test
+    public void testRegexMatchesCompleteLinesOnly() {
+        Matcher matcher = OutputCondition.matches("^Started").newMatcher();
+        assertFalse(update(matcher, "Starting...\nStar"));
+        assertFalse(update(matcher, "ted in 5s"));
+        assertTrue(update(matcher, "\r\n"));
+    }
+
+    @Test
+    public void testBytesSpanningWrites() {
+        Matcher matcher = OutputCondition.contains("aab".getBytes()).newMatcher();
+        assertFalse(update(matcher, "xaaa"));
+        assertTrue(update(matcher, "by"));
+    }
+
+    @Test
+    public void testLineCount() {
+        Matcher matcher = OutputCondition.lines(3).newMatcher();
+        assertFalse(update(matcher, "1\n2"));
+        assertFalse(update(matcher, "\n3"));
+        assertTrue(update(matcher, "\n4\n"));
+    }
+
+    @Test
+    public void testWatchOnlyConfiguredSource() throws IOException {
+        final AtomicInteger met = new AtomicInteger();
+        Runnable onMet = new Runnable() {
+            @Override
+            public void run() {
+                met.incrementAndGet();
+            }
+        };
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputCondition condition = OutputCondition.lines(1).in(Source.STDERR);
+        assertSame(sink, condition.watch(sink, Source.STDOUT, onMet));
+        OutputStream stderr = condition.watch(sink, Source.STDERR, onMet);
+        stderr.write("error\n".getBytes());
+        stderr.write("error\n".getBytes());
+        assertEquals(1, met.get());
+        assertEquals("error\nerror\n", sink.toString());
+    }
+
+    private static boolean update(Matcher matcher, String text) {
+        byte[] bytes = text.getBytes();
+        return matcher.update(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,194 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RacingSocketFactory}.
+ */
+public final class RacingSocketFactoryTest {
+
+    @Test
+    public void testInterleave() throws UnknownHostException {
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        List<InetAddress> interleaved = RacingSocketFactory.interleave(new InetAddress[] {v6a, v6b, v4a, v4b});
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b), interleaved);
+        interleaved = RacingSocketFactory.interleave(new InetAddress[] {v4a, v6a, v6b});
+        assertEquals(Arrays.asList(v4a, v6a, v6b), interleaved);
+    }
+
+    @Test
+    public void testResolutionCache() throws IOException {
+        final AtomicInteger lookups = new AtomicInteger();
+        RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        });
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        for (int i = 0; i < 3; i++) {
+            socketFactory.createSocket("example.com", serverSocket.getLocalPort()).close();
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(2, socketFactory.getCacheHitCount());
+        assertEquals(3, socketFactory.getConnectCount());
+        socketFactory.setResolutionTtl("0s");
+        socketFactory.clearCache();
+        socketFactory.createSocket("example.com", serverSocket.getLocalPort()).close();
+        socketFactory.createSocket("example.com", serverSocket.getLocalPort()).close();
+        assertEquals(3, lookups.get());
+        serverSocket.close();
+    }
+
+    @Test
+    public void testNegativeResolutionCache() throws IOException {
+        final AtomicInteger lookups = new AtomicInteger();
+        RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                throw new UnknownHostException(host);
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            try {
+                socketFactory.createSocket("nonexistent.invalid", 22);
+                fail();
+            } catch (UnknownHostException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(2, socketFactory.getNegativeCacheHitCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentMissesShareResolution() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch resolving = new CountDownLatch(1);
+        final CountDownLatch resolve = new CountDownLatch(1);
+        final RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                resolving.countDown();
+                try {
+                    resolve.await();
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        });
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger connected = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        socketFactory.createSocket("example.com", serverSocket.getLocalPort()).close();
+                        connected.incrementAndGet();
+                    } catch (IOException e) {
+                        // Counted as not connected
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        resolving.await();
+        Thread.sleep(200L); // Let the others find the lookup in flight
+        resolve.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8, connected.get());
+        assertEquals(1, lookups.get());
+        serverSocket.close();
+        socketFactory.close();
+    }
+
+    @Test
+    public void testExpiredResolutionsEvicted() throws IOException {
+        RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                throw new UnknownHostException(host);
+            }
+        });
+        socketFactory.setNegativeResolutionTtl("0s");
+        for (int i = 0; i < 100; i++) {
+            try {
+                socketFactory.createSocket("host" + i + ".invalid", 22);
+                fail();
+            } catch (UnknownHostException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, socketFactory.cachedHostCount());
+        socketFactory.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClosed() throws IOException {
+        RacingSocketFactory socketFactory = new RacingSocketFactory();
+        socketFactory.close();
+        socketFactory.createSocket("localhost", 22);
+    }
+
+    @Test
+    public void testRaceToWorkingAddress() throws IOException {
+        final InetAddress unreachable = InetAddress.getByName("192.0.2.1");
+        RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) {
+                return new InetAddress[] {unreachable, InetAddress.getLoopbackAddress()};
+            }
+        });
+        socketFactory.setConnectTimeout("10s");
+        socketFactory.setAttemptDelay("100ms");
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        long start = System.currentTimeMillis();
+        Socket socket = socketFactory.createSocket("example.com", serverSocket.getLocalPort());
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        assertEquals(InetAddress.getLoopbackAddress(), socket.getInetAddress());
+        assertEquals(2, socketFactory.getAttemptCount());
+        socket.close();
+        serverSocket.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testAllAttemptsFail() throws IOException {
+        RacingSocketFactory socketFactory = new RacingSocketFactory(new RacingSocketFactory.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) {
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        });
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        try {
+            socketFactory.createSocket("example.com", port);
+        } finally {
+            assertEquals(1, socketFactory.getFailedConnectCount());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package fi.jpalomaki.ssh.jsch;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TarArchive}.
+ */
+public final class TarArchiveTest {
+
+    @Test
+    public void testHeaderChecksum() {
+        byte[] header = TarArchive.header("f/0", 0644, 1234L, 1700000000L);
+        assertEquals(512, header.length);
+        long sum = 0L;
+        for (int i = 0; i < header.length; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        assertEquals(Long.toOctalString(sum), new String(header, 148, 6).replaceFirst("^0+", ""));
+        assertEquals("00000002322", new String(header, 124, 11));
+        assertEquals("ustar", new String(header, 257, 5));
+    }
+
+    @Test
+    public void testStreamedArchive() throws IOException {
+        File file = File.createTempFile("tar", ".bin");
+        file.deleteOnExit();
+        byte[] content = new byte[1500];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte)i;
+        }
+        Files.write(file.toPath(), content);
+        TarArchive archive = new TarArchive();
+        archive.addFile("f/0", file.toPath(), 0L, content.length, 0644, 0L);
+        archive.addFile("b/0", file.toPath(), 1000L, 500L, 0644, 0L);
+        archive.addBytes("apply", "true\n".getBytes(), 0644, 0L);
+        byte[] tar = readFully(archive.open());
+        assertEquals(archive.size(), tar.length);
+        assertEquals(512 + 1536 + 512 + 512 + 512 + 512 + 1024, tar.length);
+        assertEquals(content[1499], tar[512 + 1499]);
+        assertEquals(content[1000], tar[512 + 1536 + 512]);
+        assertEquals(content[1499], tar[512 + 1536 + 512 + 499]);
+        assertEquals("true\n", new String(tar, 512 + 1536 + 512 + 512 + 512, 5));
+    }
+
+    @Test
+    public void testShrunkFileFailsArchive() throws IOException {
+        File file = File.createTempFile("tar", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[1500]);
+        TarArchive archive = new TarArchive();
+        archive.addFile("b/0", file.toPath(), 1000L, 1000L, 0644, 0L); // File ends 500 bytes short
+        try {
+            readFully(archive.open());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("500 bytes short"));
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[700];
+        for (int read; (read = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+package fi.jpalomaki.ssh.mock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import fi.jpalomaki.ssh.UserAtHost;
+
+/**
+ * Measures the rate of simulated commands (zero latency, no injected failures) that
+ * {@link ScenarioSshClient} sustains from the given numbers of threads, with and without
+ * a concurrency limit (of half the threads). Not run as part of the test suite.
+ *
+ * Usage: <code>ScenarioSshClientBenchmark [commandsPerThread] [threads...]</code>
+ */
+public final class ScenarioSshClientBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int commandsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.addAll(Arrays.asList(1, 4, 16));
+        }
+        System.out.println("threads  limit  commandsPerSecond");
+        for (int round = 0; round < 2; round++) { // First round warms up
+            for (int threads : threadCounts) {
+                for (int limit : Arrays.asList(0, Math.max(1, threads / 2))) {
+                    double rate = run(threads, limit, commandsPerThread);
+                    if (round > 0) {
+                        System.out.println(String.format("%7d  %5d  %17.0f", threads, limit, rate));
+                    }
+                }
+            }
+        }
+    }
+
+    private static double run(int threads, int limit, final int commandsPerThread) throws InterruptedException {
+        Scenario scenario = new Scenario();
+        scenario.setStdout("Linux");
+        final ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario));
+        ScenarioSshClient.Configuration configuration = new ScenarioSshClient.Configuration();
+        configuration.setMaxConcurrentCommands(limit);
+        sshClient.setConfiguration(configuration);
+        final UserAtHost userAtHost = new UserAtHost("test", "web1.example.com");
+        final ByteBuffer stdin = ByteBuffer.wrap(new byte[0]);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < commandsPerThread; j++) {
+                        sshClient.executeCommand("uname", stdin, userAtHost);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - startNanos;
+        return sshClient.getCommandCount() / (nanos / 1e9);
+    }
+}
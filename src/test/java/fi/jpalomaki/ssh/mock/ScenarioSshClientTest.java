@@ -0,0 +1,128 @@
+package fi.jpalomaki.ssh.mock;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import fi.jpalomaki.ssh.*;
+
+public final class ScenarioSshClientTest {
+
+    private final UserAtHost web1 = new UserAtHost("test", "web1.example.com");
+    private final UserAtHost db1 = new UserAtHost("test", "db1.example.com");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLatencyWithoutUnit() {
+        Latency.parse("5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownLatencyDistribution() {
+        Latency.parse("pareto(1ms)");
+    }
+
+    @Test
+    public void testLatencyDistributions() {
+        Random random = new Random(42);
+        assertEquals(250000L, Latency.parse("250us").nextNanos(random));
+        for (int i = 0; i < 1000; i++) {
+            long uniform = Latency.parse("uniform(1ms, 2ms)").nextNanos(random);
+            assertTrue(uniform >= 1000000L && uniform <= 2000000L);
+            assertTrue(Latency.parse("exponential(1ms)").nextNanos(random) >= 0L);
+            assertTrue(Latency.parse("normal(1ms,5ms)").nextNanos(random) >= 0L);
+        }
+    }
+
+    @Test(expected = SshClientException.class)
+    public void testNoMatchingScenario() {
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.executeCommand("whoami", web1);
+    }
+
+    @Test
+    public void testFirstMatchingScenarioWins() {
+        Scenario uname = new Scenario();
+        uname.setCommandPattern("uname.*");
+        uname.setHostPattern("web\\d+\\..*");
+        uname.setStdout("Linux");
+        Scenario fallback = new Scenario();
+        fallback.setExitCode(127);
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(uname, fallback));
+        assertEquals("Linux", sshClient.executeCommand("uname -a", web1).stdoutAsText());
+        assertEquals(127, sshClient.executeCommand("uname -a", db1).exitCode);
+        assertEquals(2, sshClient.getCommandCount());
+    }
+
+    @Test
+    public void testGeneratedStdoutAndEchoedStdin() {
+        Scenario scenario = new Scenario();
+        scenario.setStdoutSize(1000);
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario));
+        assertEquals(1000, sshClient.executeCommand("find /", web1).stdout.remaining());
+        scenario.setEchoStdin(true);
+        ByteBuffer stdin = ByteBuffer.wrap("secret".getBytes());
+        assertEquals("secret", sshClient.executeCommand("cat -", stdin, web1).stdoutAsText());
+        stdin.position(3);
+        assertEquals("ret", sshClient.executeCommand("cat -", stdin, web1).stdoutAsText());
+        assertEquals(3, stdin.position());
+    }
+
+    @Test
+    public void testInjectedFailuresAndTimeouts() {
+        Scenario scenario = new Scenario();
+        scenario.setFailureRate(1.0);
+        ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario));
+        try {
+            sshClient.executeCommand("whoami", web1);
+            fail();
+        } catch (SshClientException e) {
+            assertEquals(1, sshClient.getFailureCount());
+        }
+        scenario.setFailureRate(0.0);
+        scenario.setTimeoutRate(1.0);
+        ScenarioSshClient.Configuration configuration = new ScenarioSshClient.Configuration();
+        configuration.setSessionTimeout("200ms");
+        sshClient.setConfiguration(configuration);
+        long start = System.nanoTime();
+        try {
+            sshClient.executeCommand("whoami", web1);
+            fail();
+        } catch (SessionTimeoutException e) {
+            assertTrue(System.nanoTime() - start >= 200L * 1000 * 1000); // Blocked for the session timeout
+            assertEquals(1, sshClient.getTimeoutCount());
+        }
+        assertEquals(0, sshClient.getActiveCommands());
+    }
+
+    @Test
+    public void testConcurrencyLimitQueues() throws InterruptedException {
+        Scenario scenario = new Scenario();
+        scenario.setLatency("500ms");
+        final ScenarioSshClient sshClient = new ScenarioSshClient();
+        sshClient.setScenarios(Arrays.asList(scenario));
+        ScenarioSshClient.Configuration configuration = new ScenarioSshClient.Configuration();
+        configuration.setMaxConcurrentCommands(1);
+        sshClient.setConfiguration(configuration);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                sshClient.executeCommand("sleep 1s", web1);
+            }
+        };
+        thread.start();
+        while (sshClient.getActiveCommands() == 0) {
+            Thread.sleep(1L);
+        }
+        long start = System.nanoTime();
+        sshClient.executeCommand("sleep 1s", db1);
+        assertTrue(System.nanoTime() - start >= 500L * 1000 * 1000); // Waited for the first one
+        assertEquals(1, sshClient.getQueuedCount());
+        assertEquals(0, sshClient.getQueuedCommands());
+        assertEquals(2, sshClient.getCommandCount());
+        thread.join();
+    }
+}
@@ -0,0 +1,43 @@
+package fi.jpalomaki.ssh.util;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ByteBufferInputStream}.
+ */
+public final class ByteBufferInputStreamTest {
+
+    @Test
+    public void testReadDirectBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+        buffer.put("0123456789".getBytes()).flip();
+        buffer.position(2);
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer.duplicate());
+        assertEquals(8, in.available());
+        assertEquals('2', in.read());
+        byte[] bytes = new byte[16];
+        assertEquals(7, in.read(bytes, 1, 16 - 1));
+        assertEquals("3456789", new String(bytes, 1, 7));
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(bytes, 0, bytes.length));
+        assertEquals(8, in.getBytesRead());
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void testSkip() {
+        ByteBufferInputStream in = new ByteBufferInputStream(ByteBuffer.wrap("abcdef".getBytes()));
+        assertEquals(4, in.skip(4));
+        assertEquals('e', in.read());
+        assertEquals(1, in.skip(10));
+        assertEquals(0, in.skip(10));
+        assertEquals(6, in.getBytesRead());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullBuffer() {
+        new ByteBufferInputStream(null);
+    }
+}
@@ -0,0 +1,77 @@
+package fi.jpalomaki.ssh.util;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GunzipOutputStream}.
+ */
+public final class GunzipOutputStreamTest {
+
+    @Test
+    public void testDecompressInChunks() throws IOException {
+        byte[] data = randomText(200000);
+        byte[] compressed = gzip(data);
+        for (int chunk : new int[] {1, 7, 4096, compressed.length}) {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            GunzipOutputStream gunzip = new GunzipOutputStream(sink);
+            for (int offset = 0; offset < compressed.length; offset += chunk) {
+                gunzip.write(compressed, offset, Math.min(chunk, compressed.length - offset));
+            }
+            assertTrue(gunzip.isComplete());
+            gunzip.close();
+            assertArrayEquals(data, sink.toByteArray());
+        }
+    }
+
+    @Test
+    public void testConcatenatedMembers() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        GunzipOutputStream gunzip = new GunzipOutputStream(sink);
+        gunzip.write(gzip("foo".getBytes()));
+        gunzip.write(gzip("bar".getBytes()));
+        assertTrue(gunzip.isComplete());
+        assertEquals("foobar", sink.toString());
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] compressed = gzip(randomText(1000));
+        GunzipOutputStream gunzip = new GunzipOutputStream(new ByteArrayOutputStream());
+        gunzip.write(compressed, 0, compressed.length - 4);
+        assertFalse(gunzip.isComplete());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupt() throws IOException {
+        byte[] compressed = gzip(randomText(1000));
+        compressed[compressed.length - 8] ^= 1; // CRC
+        new GunzipOutputStream(new ByteArrayOutputStream()).write(compressed);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotGzip() throws IOException {
+        new GunzipOutputStream(new ByteArrayOutputStream()).write("plain".getBytes());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(data);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] randomText(int length) {
+        byte[] text = new byte[length];
+        Random random = new Random(42L);
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte)('a' + random.nextInt(8));
+        }
+        return text;
+    }
+}